@@ -0,0 +1,136 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.jenkinsci.plugins.appthwack.AppThwackMetricsStore.Column;
+import org.jenkinsci.plugins.appthwack.AppThwackMetricsStore.Series;
+
+/**
+ * Cost of building the performance trend of a project with 1,000 AppThwack builds.
+ *
+ * <ul>
+ *   <li>stringStats: performance stats kept as Strings and parsed on every getter call (before they were parsed once)</li>
+ *   <li>floatStats: the same stats read from the parsed floats of migrated results</li>
+ *   <li>storeTrend: the trend data served to graphs, read from the metrics store and downsampled</li>
+ * </ul>
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrendGraphBenchmark {
+
+    private static final String[] StatFields = { "cpuAvg", "memAvg", "threadAvg", "drawAvg", "fpsAvg" };
+
+    @Param({ "1000" })
+    public int builds;
+
+    private String[][] stringStats;
+    private List<AppThwackTestResult> results;
+    private File storeDir;
+    private AppThwackMetricsStore store;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        stringStats = new String[builds][StatFields.length];
+        results = new ArrayList<AppThwackTestResult>(builds);
+        for (int i = 0; i < builds; i++) {
+            // Results recorded before the stats were parsed up front, migrated when they're loaded.
+            AppThwackTestResult result = new AppThwackTestResult(null, null, null);
+            for (int s = 0; s < StatFields.length; s++) {
+                stringStats[i][s] = String.valueOf(random.nextFloat() * 100);
+                Field field = AppThwackTestResult.class.getDeclaredField(StatFields[s]);
+                field.setAccessible(true);
+                field.set(result, stringStats[i][s]);
+            }
+            results.add((AppThwackTestResult) result.readResolve());
+        }
+
+        storeDir = File.createTempFile("appthwack-metrics", "");
+        if (!storeDir.delete()) {
+            throw new IOException(String.format("Unable to delete %s", storeDir));
+        }
+        store = AppThwackMetricsStore.create(storeDir);
+        for (int i = 0; i < builds; i++) {
+            float[] values = new float[Column.values().length - 2];
+            for (int c = 0; c < values.length; c++) {
+                values[c] = random.nextFloat() * 100;
+            }
+            store.appendRow(i + 1, 1, values);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = storeDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        storeDir.delete();
+    }
+
+    @Benchmark
+    public float stringStats() {
+        float sum = 0;
+        for (String[] stats : stringStats) {
+            for (String stat : stats) {
+                sum += parse(stat);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float floatStats() {
+        float sum = 0;
+        for (AppThwackTestResult result : results) {
+            sum += result.getCpuAvg() + result.getMemoryAvg() + result.getThreadAvg() + result.getDrawTimeAvg() + result.getFpsAvg();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public Object storeTrend() {
+        Column[] columns = Series.getColumns(null);
+        Series series = store.query(Integer.MAX_VALUE, builds);
+        return series.downsample(AppThwackGraph.MaxGraphPoints, columns).toJSON(columns);
+    }
+
+    /**
+     * What each performance stat getter did before the stats were parsed once.
+     */
+    private static float parse(String value) {
+        try {
+            return Float.parseFloat(value);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
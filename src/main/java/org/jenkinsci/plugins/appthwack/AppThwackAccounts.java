@@ -0,0 +1,217 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.appthwack.appthwack.AppThwackApi;
+
+/**
+ * Pool of AppThwack accounts (API keys) which builds are spread across.
+ *
+ * Each account has its own device concurrency, so piling every job onto a single key leaves
+ * the capacity of all other accounts unused. Builds are placed on the least utilized account
+ * which has the requested project and device pool; all runs of a build then use that account,
+ * as its uploads are only visible to the account which made them.
+ *
+ * Utilization is the share of an account's maximum concurrent runs taken by the builds placed
+ * on it. Accounts without a maximum are assumed to be as large as the largest account which has
+ * one, so an unlimited account isn't picked for every build regardless of its load.
+ *
+ */
+public class AppThwackAccounts {
+
+    private final List<Account> accounts = new ArrayList<Account>();
+
+    /**
+     * A single AppThwack account and the runs currently placed on it.
+     */
+    public static class Account {
+        private final String apiKey;
+        private int maxConcurrentRuns;
+        private AppThwackRunSlots runSlots;
+        private int activeRuns;
+
+        /**
+         * @param apiKey AppThwack API key of the account
+         * @param maxConcurrentRuns maximum number of concurrent runs on this account, 0 for unlimited
+         */
+        public Account(String apiKey, int maxConcurrentRuns) {
+            this.apiKey = apiKey;
+            setMaxConcurrentRuns(maxConcurrentRuns);
+        }
+
+        public String getApiKey() {
+            return apiKey;
+        }
+
+        public AppThwackApi getApi() {
+            return AppThwackClients.get(apiKey);
+        }
+
+        /**
+         * Change the maximum number of concurrent runs, resizing rather than replacing the slots
+         * so builds holding slots hand them back to the same instance.
+         * @param maxConcurrentRuns maximum number of concurrent runs on this account, 0 for unlimited
+         */
+        public synchronized void setMaxConcurrentRuns(int maxConcurrentRuns) {
+            this.maxConcurrentRuns = maxConcurrentRuns;
+            if (maxConcurrentRuns <= 0) {
+                return;
+            }
+            if (runSlots == null) {
+                runSlots = new AppThwackRunSlots(maxConcurrentRuns);
+            }
+            else {
+                runSlots.setCapacity(maxConcurrentRuns);
+            }
+        }
+
+        public synchronized int getMaxConcurrentRuns() {
+            return maxConcurrentRuns;
+        }
+
+        /**
+         * Return the slots limiting the number of concurrent runs on this account or null if unlimited.
+         * @return
+         */
+        public synchronized AppThwackRunSlots getRunSlots() {
+            return (maxConcurrentRuns > 0) ? runSlots : null;
+        }
+
+        /**
+         * Return the number of runs placed on this account by running builds.
+         * @return
+         */
+        public synchronized int getActiveRuns() {
+            return activeRuns;
+        }
+
+        /**
+         * Hand back runs reserved by {@link AppThwackAccounts#reserve(Map)} once they finished, or the build failed before scheduling them.
+         * @param runs
+         */
+        public synchronized void release(int runs) {
+            activeRuns -= runs;
+        }
+
+        private synchronized void addActiveRuns(int runs) {
+            activeRuns += runs;
+        }
+
+        /**
+         * Return the API key in a form which is safe to show in the build log.
+         * @return
+         */
+        public String getDisplayName() {
+            return (apiKey.length() > 4) ? "..." + apiKey.substring(apiKey.length() - 4) : apiKey;
+        }
+    }
+
+    /**
+     * Create the account pool from the primary API key and a list of additional keys, one per line.
+     * Each line holds an API key optionally followed by the maximum number of concurrent runs of its account.
+     * @param apiKey primary API key
+     * @param additionalApiKeys additional API keys
+     */
+    public AppThwackAccounts(String apiKey, String additionalApiKeys) {
+        this(apiKey, additionalApiKeys, null);
+    }
+
+    /**
+     * Create the account pool from the primary API key and a list of additional keys, one per line,
+     * taking over the accounts of the given pool which are still configured along with the runs placed on them.
+     * @param apiKey primary API key
+     * @param additionalApiKeys additional API keys
+     * @param previous pool of the previous configuration or null
+     */
+    public AppThwackAccounts(String apiKey, String additionalApiKeys, AppThwackAccounts previous) {
+        if (apiKey != null && !apiKey.trim().isEmpty()) {
+            add(apiKey.trim(), 0, previous);
+        }
+        if (additionalApiKeys == null) {
+            return;
+        }
+        for (String line : additionalApiKeys.split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty()) {
+                continue;
+            }
+            int maxConcurrentRuns = 0;
+            if (fields.length > 1) {
+                try {
+                    maxConcurrentRuns = Integer.parseInt(fields[1]);
+                }
+                catch (NumberFormatException e) {
+                    // Treat as unlimited, validated when the configuration is saved.
+                }
+            }
+            add(fields[0], maxConcurrentRuns, previous);
+        }
+    }
+
+    private void add(String apiKey, int maxConcurrentRuns, AppThwackAccounts previous) {
+        if (previous != null) {
+            for (Account account : previous.accounts) {
+                if (account.getApiKey().equals(apiKey)) {
+                    account.setMaxConcurrentRuns(maxConcurrentRuns);
+                    accounts.add(account);
+                    return;
+                }
+            }
+        }
+        accounts.add(new Account(apiKey, maxConcurrentRuns));
+    }
+
+    /**
+     * Return the API keys of all accounts.
+     * @return
+     */
+    public List<String> getApiKeys() {
+        List<String> keys = new ArrayList<String>();
+        for (Account account : accounts) {
+            keys.add(account.getApiKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Return all accounts in their configured order, the primary account first.
+     * @return
+     */
+    public List<Account> getAccounts() {
+        return new ArrayList<Account>(accounts);
+    }
+
+    /**
+     * Place a build on the least utilized of the given accounts and reserve its runs there right away, so
+     * concurrent builds choosing an account see them. Ties go to the account configured first.
+     * The runs must be handed back with {@link Account#release(int)} however the build ends.
+     * @param candidates accounts which have the project and device pools of the build, each with the number of runs it schedules there
+     * @return chosen account or null if there are no candidates
+     */
+    public synchronized Account reserve(Map<Account, Integer> candidates) {
+        int largestCapacity = 1;
+        for (Account account : accounts) {
+            largestCapacity = Math.max(largestCapacity, account.getMaxConcurrentRuns());
+        }
+        Account chosen = null;
+        double lowest = Double.MAX_VALUE;
+        for (Account account : candidates.keySet()) {
+            int capacity = (account.getMaxConcurrentRuns() > 0) ? account.getMaxConcurrentRuns() : largestCapacity;
+            double utilization = (double) account.getActiveRuns() / capacity;
+            if (utilization < lowest) {
+                chosen = account;
+                lowest = utilization;
+            }
+        }
+        if (chosen != null) {
+            chosen.addActiveRuns(candidates.get(chosen));
+        }
+        return chosen;
+    }
+
+    public boolean isEmpty() {
+        return accounts.isEmpty();
+    }
+}
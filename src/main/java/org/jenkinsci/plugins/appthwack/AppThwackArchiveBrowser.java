@@ -0,0 +1,263 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves the contents of an AppThwack results archive (logs, screenshots, per device folders)
+ * straight from the compressed archive.
+ *
+ * Results are no longer extracted for every build since most of these files are never opened.
+ * Core's DirectoryBrowserSupport can only serve directories which exist on disk, so browsing
+ * the archive without extracting it takes a browser of its own.
+ *
+ * The archive is opened on first access and stays open while it is being browsed; an index of its
+ * central directory is built once and individual entries are opened with random access into it.
+ * The archive is closed once it hasn't been used for a minute, so it doesn't stay locked (build
+ * deletion on Windows) after someone looked at it.
+ *
+ */
+public class AppThwackArchiveBrowser {
+
+    private static final long IdleTimeout = 60 * 1000;
+
+    private static final ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor(
+            new AppThwackCompletionService.NamedThreadFactory("AppThwack archive closer"));
+
+    private final File archive;
+
+    private transient SoftReference<SortedMap<String, Long>> index;
+    private transient ZipFile zip;
+    private transient int readers;
+    private transient long lastUsed;
+
+    /**
+     * Single file or directory within the results archive.
+     */
+    public static class Entry {
+        private final String name;
+        private final boolean directory;
+        private final long size;
+
+        public Entry(String name, boolean directory, long size) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    public AppThwackArchiveBrowser(File archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Return the name of the results archive.
+     * @return
+     */
+    public String getArchiveName() {
+        return archive.getName();
+    }
+
+    public void doIndex(StaplerRequest request, StaplerResponse response) throws IOException, ServletException {
+        serve("", request, response);
+    }
+
+    public void doDynamic(StaplerRequest request, StaplerResponse response) throws IOException, ServletException {
+        serve(request.getRestOfPath(), request, response);
+    }
+
+    /**
+     * Serve the directory listing or file content of the given path within the archive.
+     * @param path path within the archive
+     * @param request
+     * @param response
+     * @throws IOException
+     * @throws ServletException
+     */
+    private void serve(String path, StaplerRequest request, StaplerResponse response) throws IOException, ServletException {
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        SortedMap<String, Long> entries = getIndex();
+
+        // Directory: List its direct children.
+        if (path.isEmpty() || path.endsWith("/")) {
+            List<Entry> children = list(entries, path);
+            if (!path.isEmpty() && children.isEmpty()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            request.setAttribute("path", path);
+            request.setAttribute("entries", children);
+            response.forward(this, "dir", request);
+            return;
+        }
+
+        // Directory without trailing slash: Redirect so relative links resolve.
+        if (!entries.containsKey(path)) {
+            if (!list(entries, path + "/").isEmpty()) {
+                response.sendRedirect2(request.getRequestURI() + "/");
+            }
+            else {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            }
+            return;
+        }
+
+        // File: Stream the single entry out of the archive.
+        ZipFile zip = open();
+        try {
+            ZipEntry entry = zip.getEntry(path);
+            InputStream in = zip.getInputStream(entry);
+            try {
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                // Entries larger than 2 GB are served without a content length.
+                long size = entry.getSize();
+                response.serveFile(request, in, entry.getTime(), (size <= Integer.MAX_VALUE) ? (int) size : -1, name);
+            }
+            finally {
+                in.close();
+            }
+        }
+        finally {
+            release();
+        }
+    }
+
+    /**
+     * Return the direct children (files and directories) of the given directory within the archive.
+     * @param entries index of the archive
+     * @param dir directory path within the archive, empty or ending with a slash
+     * @return
+     */
+    private static List<Entry> list(SortedMap<String, Long> entries, String dir) {
+        List<Entry> children = new ArrayList<Entry>();
+        String lastDirectory = null;
+        for (SortedMap.Entry<String, Long> entry : entries.tailMap(dir).entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith(dir)) {
+                break;
+            }
+            String relative = name.substring(dir.length());
+            int slash = relative.indexOf('/');
+            if (slash < 0) {
+                children.add(new Entry(relative, false, entry.getValue()));
+            }
+            else {
+                String directory = relative.substring(0, slash);
+                if (!directory.equals(lastDirectory)) {
+                    children.add(new Entry(directory, true, 0));
+                    lastDirectory = directory;
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Return the index (entry name to uncompressed size) of all files in the archive, reading
+     * the archive's central directory if it isn't cached.
+     * @return
+     * @throws IOException
+     */
+    private synchronized SortedMap<String, Long> getIndex() throws IOException {
+        SortedMap<String, Long> entries = (index != null) ? index.get() : null;
+        if (entries != null) {
+            return entries;
+        }
+        entries = new TreeMap<String, Long>();
+        ZipFile zip = open();
+        try {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory()) {
+                    entries.put(entry.getName(), entry.getSize());
+                }
+            }
+        }
+        finally {
+            release();
+        }
+        index = new SoftReference<SortedMap<String, Long>>(entries);
+        return entries;
+    }
+
+    /**
+     * Return the open archive, opening it if needed. Every call must be paired with {@link #release()}.
+     * @return
+     * @throws IOException
+     */
+    private synchronized ZipFile open() throws IOException {
+        if (zip == null) {
+            zip = new ZipFile(archive);
+            scheduleClose(IdleTimeout);
+        }
+        readers++;
+        return zip;
+    }
+
+    private synchronized void release() {
+        readers--;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    private void scheduleClose(long delay) {
+        closer.schedule(new Runnable() {
+            public void run() {
+                closeIfIdle();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close the archive unless it is being read or has been used within the idle timeout.
+     */
+    private synchronized void closeIfIdle() {
+        if (zip == null) {
+            return;
+        }
+        long idle = System.currentTimeMillis() - lastUsed;
+        if (readers > 0 || idle < IdleTimeout) {
+            scheduleClose(Math.max(1000, IdleTimeout - idle));
+            return;
+        }
+        try {
+            zip.close();
+        }
+        catch (IOException e) {
+            // Nothing left to read from it either way.
+        }
+        zip = null;
+    }
+}
@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+
+/**
+ * Lazily iterates the AppThwack builds of a project from a given build backwards.
+ *
+ * Builds are looked up through the {@link AppThwackBuildIndex} and only loaded as the iteration
+ * reaches them, so callers which only need the most recent few results stop loading builds
+ * as soon as they have them, regardless of the length of the build history.
+ *
+ */
+public class AppThwackBuildHistory implements Iterable<AppThwackTestResultAction> {
+
+    private final AbstractProject<?, ?> project;
+    private final int start;
+
+    /**
+     * Iterate the AppThwack builds of the given project, most recent first.
+     * @param project jenkins project which contains builds to iterate
+     */
+    public AppThwackBuildHistory(AbstractProject<?, ?> project) {
+        this(project, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Iterate the AppThwack builds of the given project, starting with the given build number (inclusive).
+     * @param project jenkins project which contains builds to iterate
+     * @param start build number to start from
+     */
+    public AppThwackBuildHistory(AbstractProject<?, ?> project, int start) {
+        this.project = project;
+        this.start = start;
+    }
+
+    public Iterator<AppThwackTestResultAction> iterator() {
+        return new Iterator<AppThwackTestResultAction>() {
+
+            private final AppThwackBuildIndex index = AppThwackBuildIndex.get(project);
+            private int next = start;
+            private AppThwackTestResultAction action;
+
+            public boolean hasNext() {
+                while (action == null && next != Integer.MIN_VALUE) {
+                    AppThwackBuildIndex.Entry entry = (next == Integer.MAX_VALUE) ? index.getLatest() : index.getPrevious(next + 1);
+                    if (entry == null) {
+                        next = Integer.MIN_VALUE;
+                        break;
+                    }
+                    next = entry.getNumber() - 1;
+                    AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) project.getBuildByNumber(entry.getNumber());
+                    action = (build == null) ? null : build.getAction(AppThwackTestResultAction.class);
+                    if (action == null) {
+                        // Build (or its AppThwack run) was removed behind our back.
+                        index.remove(entry.getNumber());
+                    }
+                }
+                return action != null;
+            }
+
+            public AppThwackTestResultAction next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                AppThwackTestResultAction current = action;
+                action = null;
+                return current;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
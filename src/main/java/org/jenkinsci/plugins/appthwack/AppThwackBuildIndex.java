@@ -0,0 +1,421 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+
+/**
+ * Persisted per project index of all builds which contain an AppThwack run.
+ *
+ * Looking up previous AppThwack results used to walk the build history from the last build
+ * back to the first, forcing Jenkins to load every build of the job. The index records the
+ * build number, run ids, counters and performance stats of each AppThwack build so lookups
+ * only load the builds they actually return.
+ *
+ * The index is kept up to date by {@link AppThwackRunListener} and built once from the build
+ * history for projects which don't have one yet. That walk happens in the background, lookups
+ * only see the builds it has reached so far until it completes (see {@link #isReady()}).
+ * Indexes of renamed and deleted jobs are dropped by {@link AppThwackItemListener}.
+ *
+ * Builds are recorded more than once (when their runs are scheduled, when they complete), so the
+ * index is only written when an entry actually changes. Writes are deferred for a few seconds and
+ * changes made in the meantime are written together.
+ *
+ */
+public class AppThwackBuildIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(AppThwackBuildIndex.class.getName());
+
+    private static final String IndexFileName = "appthwack-index.xml";
+    private static final long SaveDelay = 5 * 1000;
+
+    private static final Map<String, AppThwackBuildIndex> indexes = new ConcurrentHashMap<String, AppThwackBuildIndex>();
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(
+            new AppThwackCompletionService.NamedThreadFactory("AppThwack build index"));
+
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(
+            new AppThwackCompletionService.NamedThreadFactory("AppThwack build index writer"));
+
+    private final TreeMap<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+
+    /**
+     * Build number of each run id of the entries, built when first needed.
+     */
+    private transient Map<Integer, Integer> numbersByRunId;
+
+    private transient XmlFile file;
+    private transient volatile boolean building;
+    private transient volatile boolean evicted;
+    private transient boolean saveScheduled;
+
+    /**
+     * AppThwack results of a single build.
+     */
+    public static class Entry {
+        private final int number;
+        private final int runId;
+        private final int[] runIds;
+        private final boolean completed;
+        private final int passCount;
+        private final int warnCount;
+        private final int failCount;
+        private final int totalCount;
+        private final float duration;
+        private final float cpuAvg;
+        private final float memoryAvg;
+        private final float threadAvg;
+        private final float drawTimeAvg;
+        private final float fpsAvg;
+
+        public Entry(int number, AppThwackTestResult result) {
+            this.number = number;
+            this.runId = result.getRunId();
+            this.runIds = result.getRunIds();
+            this.completed = result.isCompleted();
+            this.passCount = result.getPassCount();
+            this.warnCount = result.getWarnCount();
+            this.failCount = result.getFailCount();
+            this.totalCount = result.getTotalCount();
+            this.duration = result.getDuration();
+            this.cpuAvg = result.getCpuAvg();
+            this.memoryAvg = result.getMemoryAvg();
+            this.threadAvg = result.getThreadAvg();
+            this.drawTimeAvg = result.getDrawTimeAvg();
+            this.fpsAvg = result.getFpsAvg();
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public int getRunId() {
+            return runId;
+        }
+
+        /**
+         * Return the ids of all AppThwack runs of the build.
+         * @return
+         */
+        public int[] getRunIds() {
+            // Entries indexed before builds had multiple runs only hold a single run id.
+            return (runIds != null) ? runIds : new int[] { runId };
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        public int getPassCount() {
+            return passCount;
+        }
+
+        public int getWarnCount() {
+            return warnCount;
+        }
+
+        public int getFailCount() {
+            return failCount;
+        }
+
+        public int getTotalCount() {
+            return totalCount;
+        }
+
+        public float getDuration() {
+            return duration;
+        }
+
+        public float getCpuAvg() {
+            return cpuAvg;
+        }
+
+        public float getMemoryAvg() {
+            return memoryAvg;
+        }
+
+        public float getThreadAvg() {
+            return threadAvg;
+        }
+
+        public float getDrawTimeAvg() {
+            return drawTimeAvg;
+        }
+
+        public float getFpsAvg() {
+            return fpsAvg;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry that = (Entry) o;
+            return number == that.number && runId == that.runId && Arrays.equals(getRunIds(), that.getRunIds())
+                    && completed == that.completed && passCount == that.passCount && warnCount == that.warnCount
+                    && failCount == that.failCount && totalCount == that.totalCount
+                    && Float.compare(duration, that.duration) == 0 && Float.compare(cpuAvg, that.cpuAvg) == 0
+                    && Float.compare(memoryAvg, that.memoryAvg) == 0 && Float.compare(threadAvg, that.threadAvg) == 0
+                    && Float.compare(drawTimeAvg, that.drawTimeAvg) == 0 && Float.compare(fpsAvg, that.fpsAvg) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return number * 31 + runId;
+        }
+    }
+
+    /**
+     * Return the index of the given project, loading it from disk or starting to build it from the build history
+     * in the background if it doesn't exist.
+     * @param project
+     * @return
+     */
+    public static AppThwackBuildIndex get(AbstractProject<?, ?> project) {
+        String key = project.getRootDir().getAbsolutePath();
+        AppThwackBuildIndex index = indexes.get(key);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(key);
+                if (index == null) {
+                    index = load(project);
+                    indexes.put(key, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Drop the indexes of the project with the given root directory and of all projects below it (in a folder),
+     * e.g. because the job has been renamed or deleted.
+     * @param rootDir
+     */
+    public static void evict(File rootDir) {
+        String path = rootDir.getAbsolutePath();
+        Iterator<Map.Entry<String, AppThwackBuildIndex>> iterator = indexes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, AppThwackBuildIndex> entry = iterator.next();
+            if (entry.getKey().equals(path) || entry.getKey().startsWith(path + File.separator)) {
+                entry.getValue().evicted = true;
+                iterator.remove();
+            }
+        }
+    }
+
+    private static AppThwackBuildIndex load(final AbstractProject<?, ?> project) {
+        XmlFile xml = new XmlFile(new File(project.getRootDir(), IndexFileName));
+        if (xml.exists()) {
+            try {
+                AppThwackBuildIndex index = (AppThwackBuildIndex) xml.read();
+                index.file = xml;
+                return index;
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format("Unable to load AppThwack build index %s, rebuilding it", xml), e);
+            }
+        }
+
+        // No index yet: Walk the build history once to create it, without holding up the caller.
+        final AppThwackBuildIndex index = new AppThwackBuildIndex();
+        index.file = xml;
+        index.building = true;
+        builder.execute(new Runnable() {
+            public void run() {
+                index.build(project);
+            }
+        });
+        return index;
+    }
+
+    /**
+     * Add all AppThwack builds of the given project's history and save the index once complete.
+     * @param project
+     */
+    private void build(AbstractProject<?, ?> project) {
+        try {
+            AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) project.getLastBuild();
+            while (build != null && !evicted) {
+                AppThwackTestResultAction action = build.getAction(AppThwackTestResultAction.class);
+                if (action != null && action.getResult() != null) {
+                    synchronized (this) {
+                        // Builds recorded while the history is walked are more recent than what the walk saw.
+                        if (!entries.containsKey(build.getNumber())) {
+                            putEntry(new Entry(build.getNumber(), action.getResult()));
+                        }
+                    }
+                }
+                build = build.getPreviousBuild();
+            }
+            synchronized (this) {
+                building = false;
+                save();
+            }
+            // Graphs rendered while the index was incomplete lack the older builds.
+            AppThwackGraphCache.getInstance().invalidate(AppThwackGraphCache.getProjectKey(project));
+        }
+        catch (RuntimeException e) {
+            // Not saved, the next lookup builds the index again.
+            LOGGER.log(Level.WARNING, String.format("Unable to build AppThwack build index %s", file), e);
+            evicted = true;
+            indexes.values().remove(this);
+        }
+    }
+
+    /**
+     * Return true once the index holds all AppThwack builds of its project, false while it's still being built.
+     * @return
+     */
+    public boolean isReady() {
+        return !building;
+    }
+
+    /**
+     * Record the current AppThwack results of the given build.
+     * @param build
+     * @return true if the entry of the build changed, false if the index already held these results
+     */
+    public synchronized boolean put(AbstractBuild<?, ?> build) {
+        AppThwackTestResultAction action = build.getAction(AppThwackTestResultAction.class);
+        if (action == null || action.getResult() == null) {
+            return false;
+        }
+        Entry entry = new Entry(build.getNumber(), action.getResult());
+        if (entry.equals(entries.get(build.getNumber()))) {
+            return false;
+        }
+        putEntry(entry);
+        save();
+        return true;
+    }
+
+    /**
+     * Drop the given build number from the index.
+     * @param number
+     */
+    public synchronized void remove(int number) {
+        Entry entry = entries.remove(number);
+        if (entry != null) {
+            unindexRunIds(entry);
+            save();
+        }
+    }
+
+    /**
+     * Return the entry of the most recent AppThwack build or null if there is none.
+     * @return
+     */
+    public synchronized Entry getLatest() {
+        return entries.isEmpty() ? null : entries.lastEntry().getValue();
+    }
+
+    /**
+     * Return the entry of the most recent AppThwack build before the given build number or null if there is none.
+     * @param number
+     * @return
+     */
+    public synchronized Entry getPrevious(int number) {
+        Map.Entry<Integer, Entry> entry = entries.lowerEntry(number);
+        return (entry == null) ? null : entry.getValue();
+    }
+
+    /**
+     * Return the entry of the build which ran the AppThwack run with the given id or null if there is none.
+     * @param runId
+     * @return
+     */
+    public synchronized Entry getByRunId(int runId) {
+        Integer number = getNumbersByRunId().get(runId);
+        return (number == null) ? null : entries.get(number);
+    }
+
+    /**
+     * Return the entries of all AppThwack builds, most recent first.
+     * @return
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.descendingMap().values());
+    }
+
+    private void putEntry(Entry entry) {
+        Entry previous = entries.put(entry.getNumber(), entry);
+        if (numbersByRunId == null) {
+            return;
+        }
+        if (previous != null) {
+            unindexRunIds(previous);
+        }
+        for (int runId : entry.getRunIds()) {
+            numbersByRunId.put(runId, entry.getNumber());
+        }
+    }
+
+    private void unindexRunIds(Entry entry) {
+        if (numbersByRunId == null) {
+            return;
+        }
+        for (int runId : entry.getRunIds()) {
+            numbersByRunId.remove(runId);
+        }
+    }
+
+    private Map<Integer, Integer> getNumbersByRunId() {
+        if (numbersByRunId == null) {
+            numbersByRunId = new HashMap<Integer, Integer>();
+            for (Entry entry : entries.values()) {
+                for (int runId : entry.getRunIds()) {
+                    numbersByRunId.put(runId, entry.getNumber());
+                }
+            }
+        }
+        return numbersByRunId;
+    }
+
+    /**
+     * Write the index once the changes made over the next few seconds have been collected.
+     */
+    private void save() {
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        writer.schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, SaveDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void flush() {
+        saveScheduled = false;
+        // A partial index on disk would never be completed and saving the index of a renamed or deleted job
+        // would recreate its directory.
+        if (building || evicted) {
+            return;
+        }
+        try {
+            file.write(this);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to save AppThwack build index %s", file), e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Concurrent cache of AppThwack API lookups which expire after a time to live.
+ *
+ * Expired values are still served for a while (stale-while-revalidate) and refreshed in the
+ * background, so callers only wait on the API when a value is missing or far out of date.
+ * Each key is loaded by a single caller at a time, concurrent callers wait for that load
+ * rather than making the same request. Missing values are remembered for a short while as well,
+ * so looking up something that doesn't exist (e.g. a project on an account which lacks it)
+ * doesn't cost a request every time.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class AppThwackCache<K, V> {
+
+    private static final Logger LOGGER = Logger.getLogger(AppThwackCache.class.getName());
+
+    /**
+     * Loads the value of a key from the AppThwack API.
+     */
+    public interface Loader<K, V> {
+        /**
+         * @param key
+         * @param log stream of the build waiting for the value to report progress to, null if there is none
+         * @return value or null if there is none
+         * @throws InterruptedException
+         */
+        V load(K key, PrintStream log) throws InterruptedException;
+    }
+
+    /**
+     * Load of a single key, shared by all callers asking for the key while it runs.
+     */
+    private static class Entry<V> extends FutureTask<V> {
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long loadedAt;
+        private volatile boolean failed;
+
+        Entry(Callable<V> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void set(V value) {
+            loadedAt = System.currentTimeMillis();
+            super.set(value);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            failed = true;
+            super.setException(t);
+        }
+    }
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+    private final Loader<K, V> loader;
+    private final Executor executor;
+    private final long ttl;
+    private final long maxStale;
+    private final long negativeTtl;
+
+    /**
+     * @param loader loads missing and expired values
+     * @param executor runs background refreshes
+     * @param ttl time (ms) a value is fresh for
+     * @param maxStale time (ms) an expired value is still served for while it is refreshed
+     * @param negativeTtl time (ms) a missing value, or a value which lacked what its caller expected, is not loaded again
+     */
+    public AppThwackCache(Loader<K, V> loader, Executor executor, long ttl, long maxStale, long negativeTtl) {
+        this.loader = loader;
+        this.executor = executor;
+        this.ttl = ttl;
+        this.maxStale = maxStale;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * Return the value of the given key, loading it if it is missing or too old to be served.
+     * @param key
+     * @param log stream to report waits for the API to, null if there is none
+     * @return value or null if there is none
+     * @throws InterruptedException
+     */
+    public V get(K key, PrintStream log) throws InterruptedException {
+        while (true) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.isDone() && !entry.failed) {
+                V value = getValue(entry);
+                long age = System.currentTimeMillis() - entry.loadedAt;
+                if (age < ((value != null) ? ttl : negativeTtl)) {
+                    return value;
+                }
+                if (value != null && age < ttl + maxStale) {
+                    refreshInBackground(key, entry);
+                    return value;
+                }
+            }
+            // Wait for the load in progress or load the value on this thread.
+            Entry<V> loading = (entry != null && !entry.isDone()) ? entry : load(key, entry, log);
+            if (loading == null) {
+                continue;
+            }
+            V value = getValue(loading);
+            if (!loading.failed) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Load the value of the given key again, e.g. because the cached value lacks something the caller expected.
+     * A value which is being loaded or was loaded within the negative time to live is returned as it is, so
+     * callers repeatedly asking for something which doesn't exist only cause a request once in a while.
+     * @param key
+     * @param log stream to report waits for the API to, null if there is none
+     * @return value or null if there is none
+     * @throws InterruptedException
+     */
+    public V refresh(K key, PrintStream log) throws InterruptedException {
+        while (true) {
+            Entry<V> entry = entries.get(key);
+            boolean recent = entry != null && !entry.failed
+                    && (!entry.isDone() || System.currentTimeMillis() - entry.loadedAt < negativeTtl);
+            Entry<V> loading = recent ? entry : load(key, entry, log);
+            if (loading == null) {
+                continue;
+            }
+            V value = getValue(loading);
+            if (!loading.failed) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Drop all cached values.
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Install a new entry for the given key in place of the given one and load it on this thread.
+     * @return entry or null if another caller replaced the given entry first
+     */
+    private Entry<V> load(final K key, Entry<V> previous, PrintStream log) throws InterruptedException {
+        Entry<V> entry = new Entry<V>(newLoad(key, log));
+        boolean installed = (previous == null) ? entries.putIfAbsent(key, entry) == null : entries.replace(key, previous, entry);
+        if (!installed) {
+            return null;
+        }
+        entry.run();
+        try {
+            entry.get();
+        }
+        catch (ExecutionException e) {
+            // Callers waiting for this load load the value themselves.
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+        }
+        return entry;
+    }
+
+    private Callable<V> newLoad(final K key, final PrintStream log) {
+        return new Callable<V>() {
+            public V call() throws InterruptedException {
+                return loader.load(key, log);
+            }
+        };
+    }
+
+    /**
+     * Wait for the value of the given entry.
+     * @return value, or null if there is none or its load was interrupted
+     */
+    private V getValue(Entry<V> entry) throws InterruptedException {
+        try {
+            return entry.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            return null;
+        }
+    }
+
+    private void refreshInBackground(final K key, final Entry<V> entry) {
+        // Only a single refresh per entry, the stale value keeps being served until it completes.
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        final Entry<V> refreshed = new Entry<V>(newLoad(key, null));
+        executor.execute(new Runnable() {
+            public void run() {
+                refreshed.run();
+                try {
+                    refreshed.get();
+                    entries.replace(key, entry, refreshed);
+                }
+                catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Unable to refresh cached AppThwack data", e);
+                    entry.refreshing.set(false);
+                }
+            }
+        });
+    }
+}
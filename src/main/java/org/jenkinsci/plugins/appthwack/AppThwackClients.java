@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.appthwack.appthwack.AppThwackApi;
+
+/**
+ * Long-lived AppThwack API clients, one per API key.
+ *
+ * Creating a client for every build, form fill and upload threw away its connections, so each
+ * request paid for a new TCP connection and TLS handshake. Clients are shared by everything
+ * in this JVM (the master, or a slave uploading artifacts) which uses the same key.
+ *
+ */
+public class AppThwackClients {
+
+    /**
+     * Creates the client of an API key.
+     */
+    interface Factory {
+        AppThwackApi create(String apiKey);
+    }
+
+    private static final Factory DefaultFactory = new Factory() {
+        public AppThwackApi create(String apiKey) {
+            return new AppThwackApi(apiKey);
+        }
+    };
+
+    private static final ConcurrentMap<String, AppThwackApi> clients = new ConcurrentHashMap<String, AppThwackApi>();
+    private static volatile Factory factory = DefaultFactory;
+
+    private AppThwackClients() {
+    }
+
+    /**
+     * Return the shared client for the given API key.
+     * @param apiKey AppThwack API key
+     * @return client or null if no key is given
+     */
+    public static AppThwackApi get(String apiKey) {
+        if (apiKey == null || apiKey.isEmpty()) {
+            return null;
+        }
+        AppThwackApi api = clients.get(apiKey);
+        if (api == null) {
+            AppThwackApi created = factory.create(apiKey);
+            api = clients.putIfAbsent(apiKey, created);
+            if (api == null) {
+                api = created;
+            }
+        }
+        return api;
+    }
+
+    /**
+     * Drop the clients of all API keys but the given ones, e.g. once the configured keys changed.
+     * @param apiKeys API keys still in use
+     */
+    public static void retain(Collection<String> apiKeys) {
+        clients.keySet().retainAll(apiKeys);
+    }
+
+    /**
+     * Create clients with the given factory from now on, e.g. to talk to a stand-in for the AppThwack API in tests.
+     * @param factory client factory or null to talk to AppThwack
+     */
+    static void setFactory(Factory factory) {
+        AppThwackClients.factory = (factory != null) ? factory : DefaultFactory;
+        clients.clear();
+    }
+}
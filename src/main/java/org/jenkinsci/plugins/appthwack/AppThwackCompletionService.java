@@ -0,0 +1,294 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.appthwack.appthwack.AppThwackRun;
+
+/**
+ * Plugin-wide scheduler which tracks every in-flight AppThwack run and polls them
+ * from a small, bounded pool of threads.
+ *
+ * Builds register their AppThwack run with this service once it has been scheduled. Builds
+ * which hold their executor block until the run completes while builds running in "detached" mode
+ * complete right away and are finalized from the registered callback.
+ *
+ * Runs are polled on an adaptive interval. While a run is queued we back off, once it starts executing
+ * we estimate its completion from previous runs of the same project, scaled to the number of devices
+ * the run reports, and tighten the interval as the expected finish approaches.
+ *
+ * Each run has its own deadline after which we stop polling it. All polls take their requests from
+ * the plugin-wide {@link AppThwackRateLimiter}, so the number of requests made against the AppThwack API
+ * stays predictable regardless of the number of active runs.
+ *
+ */
+public class AppThwackCompletionService {
+
+    private static final Logger LOGGER = Logger.getLogger(AppThwackCompletionService.class.getName());
+
+    private static final long DefaultUpdateInterval = 30 * 1000;
+    private static final long MinUpdateInterval = 10 * 1000;
+    private static final long MaxUpdateInterval = 5 * 60 * 1000;
+    private static final int DefaultEstimateSamples = 5;
+    private static final long DefaultRunTimeout = 6 * 60 * 60 * 1000;
+    private static final int DefaultPollerPoolSize = 2;
+    private static final int DefaultCallbackPoolSize = 2;
+
+    private final ScheduledExecutorService poller;
+    private final ExecutorService callbacks;
+    private final Map<Integer, Watch> watches = new ConcurrentHashMap<Integer, Watch>();
+    private final AppThwackRateLimiter rateLimiter;
+
+    /**
+     * Callback invoked once all watched AppThwack runs of a build have completed or one of them exceeded its deadline.
+     */
+    public interface Callback {
+        void onCompleted(List<AppThwackRun> runs, AppThwackTestResultAction action);
+        void onTimeout(List<AppThwackRun> runs, AppThwackTestResultAction action);
+    }
+
+    public AppThwackCompletionService(AppThwackRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        this.poller = Executors.newScheduledThreadPool(DefaultPollerPoolSize, new NamedThreadFactory("AppThwack run poller"));
+        this.callbacks = Executors.newFixedThreadPool(DefaultCallbackPoolSize, new NamedThreadFactory("AppThwack run completion"));
+    }
+
+    /**
+     * Return the number of AppThwack runs which are currently being polled.
+     * @return
+     */
+    public int getActiveRunCount() {
+        return watches.size();
+    }
+
+    /**
+     * Periodically poll the given AppThwack runs, updating the results of the given action,
+     * until all runs have completed or one has passed its deadline. The callback is then invoked from a background thread.
+     * @param runs AppThwack runs to watch, all scheduled by the same build
+     * @param action action which holds the result snapshot of the runs
+     * @param callback callback which finalizes the build once the runs complete
+     */
+    public void watch(List<AppThwackRun> runs, AppThwackTestResultAction action, Callback callback) {
+        long deadline = System.currentTimeMillis() + DefaultRunTimeout;
+        Group group = new Group(runs, action, callback);
+        for (AppThwackRun run : runs) {
+            Watch watch = new Watch(run, group, deadline);
+            watches.put(run.id, watch);
+            poller.schedule(watch, MinUpdateInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Block until all given AppThwack runs have completed or one has passed its deadline.
+     * @param runs AppThwack runs to wait for
+     * @param action action which holds the result snapshot of the runs
+     * @return true if all runs completed, false if one exceeded its deadline
+     * @throws InterruptedException if the waiting thread (build) was interrupted
+     */
+    public boolean waitForCompletion(List<AppThwackRun> runs, AppThwackTestResultAction action) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] completed = new boolean[1];
+        watch(runs, action, new Callback() {
+            public void onCompleted(List<AppThwackRun> runs, AppThwackTestResultAction action) {
+                completed[0] = true;
+                latch.countDown();
+            }
+            public void onTimeout(List<AppThwackRun> runs, AppThwackTestResultAction action) {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            // Build was aborted, stop polling on its behalf.
+            for (AppThwackRun run : runs) {
+                watches.remove(run.id);
+            }
+            throw e;
+        }
+        return completed[0];
+    }
+
+    /**
+     * All AppThwack runs scheduled by a single build, which complete together.
+     */
+    private class Group {
+
+        private final List<AppThwackRun> runs;
+        private final AppThwackTestResultAction action;
+        private final Callback callback;
+        private int remaining;
+        private boolean timedOut;
+
+        Group(List<AppThwackRun> runs, AppThwackTestResultAction action, Callback callback) {
+            this.runs = runs;
+            this.action = action;
+            this.callback = callback;
+            this.remaining = runs.size();
+        }
+
+        /**
+         * Mark a single run of this group as finished and invoke the callback once all runs are finished.
+         * @param completed true if the run completed, false if it exceeded its deadline
+         */
+        synchronized void finish(boolean completed) {
+            timedOut |= !completed;
+            if (--remaining > 0) {
+                return;
+            }
+            callbacks.submit(new Runnable() {
+                public void run() {
+                    try {
+                        if (timedOut) {
+                            callback.onTimeout(runs, action);
+                        }
+                        else {
+                            callback.onCompleted(runs, action);
+                        }
+                    }
+                    catch (Exception e) {
+                        LOGGER.log(Level.WARNING, String.format("Unable to finalize build %s", action.getOwner()), e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Polling task for a single AppThwack run which reschedules itself until the run completes.
+     */
+    private class Watch implements Runnable {
+
+        private final AppThwackRun run;
+        private final Group group;
+        private final AppThwackTestResultAction action;
+        private final long deadline;
+        private final String devicePool;
+        private int devices;
+        private long expectedDuration;
+        private long interval = MinUpdateInterval;
+        private AppThwackRateLimiter.Ticket ticket;
+
+        Watch(AppThwackRun run, Group group, long deadline) {
+            this.run = run;
+            this.group = group;
+            this.action = group.action;
+            this.deadline = deadline;
+            AppThwackTestResult result = action.getRunResult(run.id);
+            this.devicePool = (result != null) ? result.getDevicePool() : null;
+            this.expectedDuration = AppThwackUtils.estimateRunDuration(action.getOwner(), devicePool, 0, DefaultEstimateSamples);
+        }
+
+        public void run() {
+            // Stop polling runs which are no longer tracked (build aborted).
+            if (watches.get(run.id) != this) {
+                if (ticket != null) {
+                    rateLimiter.cancel(ticket);
+                }
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                LOGGER.warning(String.format("AppThwack run %s did not complete before its deadline", run.id));
+                if (ticket != null) {
+                    rateLimiter.cancel(ticket);
+                }
+                complete(false);
+                return;
+            }
+            // Queue for a request like any other caller of the job, but check back for it rather than blocking a poller thread.
+            if (ticket == null) {
+                ticket = rateLimiter.reserve(action.getOwner().getProject().getFullName());
+            }
+            long delay = rateLimiter.tryAcquire(ticket);
+            if (delay > 0) {
+                poller.schedule(this, delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+            ticket = null;
+            try {
+                if (action.updateResult(run)) {
+                    complete(true);
+                    return;
+                }
+            }
+            catch (Exception e) {
+                // Transient API failure, try again on the next interval.
+                LOGGER.log(Level.WARNING, String.format("Unable to update results for AppThwack run %s", run.id), e);
+            }
+            poller.schedule(this, nextInterval(), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Compute the delay (ms) until the next poll based on the state of the run.
+         * @return
+         */
+        private long nextInterval() {
+            AppThwackTestResult result = action.getRunResult(run.id);
+
+            // Queued: Back off until devices pick up the run.
+            if (result == null || result.isQueued()) {
+                interval = Math.min(interval * 2, MaxUpdateInterval);
+                return interval;
+            }
+
+            // Estimate again once the run reports more devices than we assumed.
+            if (result.getDeviceCount() > devices) {
+                devices = result.getDeviceCount();
+                expectedDuration = AppThwackUtils.estimateRunDuration(action.getOwner(), devicePool, devices, DefaultEstimateSamples);
+            }
+
+            // Running without history: Fall back to a fixed interval.
+            long runningSince = action.getRunningSince();
+            if (expectedDuration <= 0 || runningSince == 0) {
+                interval = DefaultUpdateInterval;
+                return interval;
+            }
+
+            // Running: Poll a few times over the remaining time, tightening as the expected finish approaches.
+            long remaining = runningSince + expectedDuration - System.currentTimeMillis();
+            if (remaining > 0) {
+                interval = Math.max(MinUpdateInterval, Math.min(remaining / 4, MaxUpdateInterval));
+            }
+            // Overdue: Start tight and gradually back off in case our estimate was off.
+            else {
+                interval = Math.min(Math.max(MinUpdateInterval, interval * 3 / 2), DefaultUpdateInterval);
+            }
+            return interval;
+        }
+
+        private void complete(boolean completed) {
+            watches.remove(run.id);
+            group.finish(completed);
+        }
+    }
+
+    /**
+     * Thread factory which creates named daemon threads, numbered in the order they were created.
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, String.format("%s #%d", name, sequence.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import jenkins.model.Jenkins;
+
+import com.appthwack.appthwack.AppThwackResult;
+
+/**
+ * Per device results (passes, warnings, failures) of a single AppThwack run.
+ *
+ * These lists are by far the largest part of a result, yet only the result page displays them.
+ * They are kept in a file next to build.xml, one per AppThwack run, so loading a build
+ * (list views, history walks) doesn't deserialize them.
+ *
+ */
+public class AppThwackDeviceResults {
+
+    private static final Logger LOGGER = Logger.getLogger(AppThwackDeviceResults.class.getName());
+
+    private final List<AppThwackResult.ResultContainer> passByDevice;
+    private final List<AppThwackResult.ResultContainer> warnByDevice;
+    private final List<AppThwackResult.ResultContainer> failByDevice;
+
+    public AppThwackDeviceResults(List<AppThwackResult.ResultContainer> passByDevice,
+                                  List<AppThwackResult.ResultContainer> warnByDevice,
+                                  List<AppThwackResult.ResultContainer> failByDevice) {
+        this.passByDevice = passByDevice;
+        this.warnByDevice = warnByDevice;
+        this.failByDevice = failByDevice;
+    }
+
+    /**
+     * Return empty device results.
+     * @return
+     */
+    public static AppThwackDeviceResults empty() {
+        return new AppThwackDeviceResults(new ArrayList<AppThwackResult.ResultContainer>(),
+                new ArrayList<AppThwackResult.ResultContainer>(),
+                new ArrayList<AppThwackResult.ResultContainer>());
+    }
+
+    public List<AppThwackResult.ResultContainer> getPassByDevice() {
+        return passByDevice;
+    }
+
+    public List<AppThwackResult.ResultContainer> getWarnByDevice() {
+        return warnByDevice;
+    }
+
+    public List<AppThwackResult.ResultContainer> getFailByDevice() {
+        return failByDevice;
+    }
+
+    /**
+     * Device results are equal if they serialize alike, the API client's result containers don't implement equals.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AppThwackDeviceResults)) {
+            return false;
+        }
+        return Jenkins.XSTREAM2.toXML(this).equals(Jenkins.XSTREAM2.toXML(o));
+    }
+
+    @Override
+    public int hashCode() {
+        return Jenkins.XSTREAM2.toXML(this).hashCode();
+    }
+
+    /**
+     * Load the device results of the given AppThwack run of a build.
+     * @param build build which scheduled the run
+     * @param runId AppThwack run id
+     * @return device results or null if there are none
+     */
+    public static AppThwackDeviceResults load(AbstractBuild<?, ?> build, int runId) {
+        XmlFile file = getFile(build, runId);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return (AppThwackDeviceResults) file.read();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to load AppThwack device results %s", file), e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the device results of the given AppThwack run of a build.
+     * @param build build which scheduled the run
+     * @param runId AppThwack run id
+     * @return true if the results were saved
+     */
+    public boolean save(AbstractBuild<?, ?> build, int runId) {
+        XmlFile file = getFile(build, runId);
+        try {
+            file.write(this);
+            return true;
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to save AppThwack device results %s", file), e);
+            return false;
+        }
+    }
+
+    private static XmlFile getFile(AbstractBuild<?, ?> build, int runId) {
+        return new XmlFile(new File(build.getRootDir(), String.format("appthwack-devices-%d.xml", runId)));
+    }
+}
@@ -10,12 +10,15 @@ import hudson.model.AbstractProject;
 import hudson.util.Graph;
 import hudson.util.Area;
 import hudson.util.ShiftedCategoryAxis;
-import hudson.util.ChartUtil.NumberOnlyBuildLabel;
 import hudson.util.DataSetBuilder;
 
 import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.CategoryAxis;
 import org.jfree.chart.axis.CategoryLabelPositions;
@@ -29,7 +32,9 @@ import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.ui.RectangleEdge;
 import org.jfree.ui.RectangleInsets;
 
-import org.jenkinsci.plugins.appthwack.AppThwackTestResult;
+import org.jenkinsci.plugins.appthwack.AppThwackMetricsStore.Column;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 /**
  * Generate stylized graphs for AppThwack results.
@@ -43,16 +48,23 @@ public class AppThwackGraph extends Graph {
     public static final Color FailColor = new Color(0xbe2326);
     public static final Color DurationColor = new Color(0x083250);
     public static final Color FrameColor = new Color(0xEBEBDC);
+
+    /**
+     * Maximum number of builds plotted by a graph, longer trends are downsampled to this many builds.
+     */
+    public static final int MaxGraphPoints = 100;
     
     private final String xLabel;
     private final String yLabel;
     private final CategoryDataset dataset;
+    private final Area size;
     private Color[] colors;
 
     public AppThwackGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, Area size, CategoryDataset dataset, String xLabel, String yLabel, Color...colors) {
         // Toggle the graph timestamp so we don't cache the graph image if the run isn't completed.
         super(((isCompleted) ? owner.getTimestamp().getTimeInMillis() : -1), size.width, size.height);
         this.dataset = dataset;
+        this.size = size;
         this.xLabel = xLabel;
         this.yLabel = yLabel;
         this.colors = colors;
@@ -101,38 +113,105 @@ public class AppThwackGraph extends Graph {
         return chart;
     }
 
+    /**
+     * Return the validator of trend data, and the graphs of it, built from the given version of a metrics store.
+     * The trend also depends on how many builds it covers and how it is downsampled.
+     * @param version version of the metrics store
+     * @param window number of builds in the trend
+     * @return unquoted entity tag
+     */
+    public static String getTrendETag(long version, int window) {
+        return String.format("%d-%d-%d-%s", version, window, MaxGraphPoints, AppThwackMetricsStore.Series.DownsampleMethod);
+    }
+
+    /**
+     * Serve this graph as a PNG image, rendering it only if it isn't in the graph cache yet.
+     * Graphs are rendered at the size the request asks for ("width" and "height"), scaled graphs
+     * ("scale") are left to {@link Graph#doPng(StaplerRequest, StaplerResponse)} and not cached.
+     * @param request
+     * @param response
+     * @param key cache key of this graph (without its size) or null if it must not be cached
+     * @param etag unquoted entity tag of the graph data (without its size) or null if clients must not revalidate it
+     * @throws IOException
+     */
+    public void doPng(StaplerRequest request, StaplerResponse response, String key, String etag) throws IOException {
+        int width = getDimension(request, "width", size.width);
+        int height = getDimension(request, "height", size.height);
+        if (width <= 0 || height <= 0 || request.getParameter("scale") != null) {
+            doPng(request, response);
+            return;
+        }
+        if (etag != null && AppThwackUtils.checkETag(request, response, String.format("\"%s-%dx%d\"", etag, width, height))) {
+            return;
+        }
+        if (key == null) {
+            doPng(request, response);
+            return;
+        }
+        AppThwackGraphCache cache = AppThwackGraphCache.getInstance();
+        String sizedKey = String.format("%s|%dx%d", key, width, height);
+        byte[] image = cache.get(sizedKey);
+        if (image == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ChartUtilities.writeChartAsPNG(out, createGraph(), width, height);
+            image = out.toByteArray();
+            cache.put(sizedKey, image);
+        }
+        response.setContentType("image/png");
+        response.setContentLength(image.length);
+        OutputStream out = response.getOutputStream();
+        out.write(image);
+        out.close();
+    }
+
+    /**
+     * Return the size (px) requested by the given parameter.
+     * @return requested size, the given default if there is none or -1 if it is malformed
+     */
+    private static int getDimension(StaplerRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Generate a results (pass/warn/fail) trend graph for recent results.
      * @param owner build which owns the latest result
      * @param isCompleted flag to denote if the result is completed which determines our caching
-     * @param results list of previous to latest results which generate the trend
+     * @param series metrics of previous to latest results which generate the trend
      * @return
      */
-    public static Graph createResultTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, List<AppThwackTestResult> results) {
+    public static AppThwackGraph createResultTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, AppThwackMetricsStore.Series series) {
         List<String> rows = new ArrayList<String>();
         List<Number> vals = new ArrayList<Number>();
-        List<NumberOnlyBuildLabel> cols = new ArrayList<NumberOnlyBuildLabel>();
+        List<BuildNumberLabel> cols = new ArrayList<BuildNumberLabel>();
 
-        for (AppThwackTestResult result : results) {
-            AbstractBuild<?, ?> build = result.getOwner();
-    
+        series = series.downsample(MaxGraphPoints, Column.PASS, Column.WARN, Column.FAIL);
+        for (int i = 0; i < series.size(); i++) {
             // Create label for this result using its Jenkins build number.
-            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
+            BuildNumberLabel label = new BuildNumberLabel(series.getNumber(i));
 
             // Add 'pass' results
             rows.add("Pass");
             cols.add(label);
-            vals.add(result.getPassCount());
+            vals.add((int) series.get(Column.PASS, i));
 
             // Add 'warn' results
             rows.add("Warn");
             cols.add(label);
-            vals.add(result.getWarnCount());
+            vals.add((int) series.get(Column.WARN, i));
     
             // Add 'fail' results.
             rows.add("Fail");
             cols.add(label);
-            vals.add(result.getFailCount());
+            vals.add((int) series.get(Column.FAIL, i));
         }
 
         CategoryDataset dataset = createDataset(vals, rows, cols);
@@ -141,155 +220,152 @@ public class AppThwackGraph extends Graph {
     }
 
     /**
-     * Generate a duration trend graph for device minutes used for recent results.
+     * Generate the trend graph of the given metric for recent results.
      * @param owner build which owns the latest result
      * @param isCompleted flag to denote if the result is completed which determines our caching
-     * @param results list of previous to latest results which generate the trend
+     * @param series metrics of previous to latest results which generate the trend
+     * @param metric "result" for pass/warn/fail counts, otherwise the key of a metric column
      * @return
      */
-    public static Graph createDurationTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, List<AppThwackTestResult> results) {
-        DataSetBuilder<String, NumberOnlyBuildLabel> builder = new DataSetBuilder<String, NumberOnlyBuildLabel>();
-
-        for (AppThwackTestResult result : results) {
-            // Create label for this result using its Jenkins build number.
-            AbstractBuild<?, ?> build = result.getOwner();
-            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
-
-            // Attach duration value for all results in our trend.
-            builder.add(result.getDuration(), "Minutes", label);
+    public static AppThwackGraph createTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, AppThwackMetricsStore.Series series, String metric) {
+        if (metric.equals("result")) {
+            return createResultTrendGraph(owner, isCompleted, series);
+        }
+        switch (Column.fromKey(metric)) {
+        case DURATION:
+            return createDurationTrendGraph(owner, isCompleted, series);
+        case CPU:
+            return createCpuTrendGraph(owner, isCompleted, series);
+        case MEMORY:
+            return createMemoryTrendGraph(owner, isCompleted, series);
+        case THREADS:
+            return createThreadTrendGraph(owner, isCompleted, series);
+        case DRAW_TIME:
+            return createFrameDrawTrendGraph(owner, isCompleted, series);
+        case FPS:
+            return createFpsTrendGraph(owner, isCompleted, series);
+        default:
+            throw new IllegalArgumentException(String.format("No trend graph of %s", metric));
         }
+    }
 
-        CategoryDataset dataset = builder.build();
-        Color[] colors = new Color[] { AppThwackGraph.DurationColor };
-        return new AppThwackGraph(owner, isCompleted, getGraphSize(), dataset, "Build #", "Device Minutes Used", colors);
+    /**
+     * Generate a duration trend graph for device minutes used for recent results.
+     * @param owner build which owns the latest result
+     * @param isCompleted flag to denote if the result is completed which determines our caching
+     * @param series metrics of previous to latest results which generate the trend
+     * @return
+     */
+    public static AppThwackGraph createDurationTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, AppThwackMetricsStore.Series series) {
+        return createTrendGraph(owner, isCompleted, series, Column.DURATION, "Minutes", "Device Minutes Used", AppThwackGraph.DurationColor);
     }
 
     /**
      * Generate a CPU usage trend graph for recent results.
      * @param owner build which owns the latest result
      * @param isCompleted flag to denote if the result is completed which determines our caching
-     * @param results list of previous to latest results which generate the trend
+     * @param series metrics of previous to latest results which generate the trend
      * @return
      */
-    public static Graph createCpuTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, List<AppThwackTestResult> results) {
-        DataSetBuilder<String, NumberOnlyBuildLabel> builder = new DataSetBuilder<String, NumberOnlyBuildLabel>();
-
-        for (AppThwackTestResult result : results) {
-            // Create label for this result using its Jenkins build number.
-            AbstractBuild<?, ?> build = result.getOwner();
-            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
-
-            // Attach CPU average value for each result in our trend.
-            float cpuAvg = result.getCpuAvg();
-            builder.add(cpuAvg, "CPU", label);
-        }
-
-        CategoryDataset dataset = builder.build();
-        Color[] colors = new Color[] { AppThwackGraph.PassColor };
-        return new AppThwackGraph(owner, isCompleted, getGraphSize(), dataset, "Build #", "CPU Average (%)", colors);
+    public static AppThwackGraph createCpuTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, AppThwackMetricsStore.Series series) {
+        return createTrendGraph(owner, isCompleted, series, Column.CPU, "CPU", "CPU Average (%)", AppThwackGraph.PassColor);
     }
 
     /**
      * Generate a memory usage (KB) trend graph for recent results.
      * @param owner build which owns the latest result
      * @param isCompleted flag to denote if the result is completed which determines our caching
-     * @param results list of previous to latest results which generate the trend
+     * @param series metrics of previous to latest results which generate the trend
      * @return
      */
-    public static Graph createMemoryTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, List<AppThwackTestResult> results) {
-        DataSetBuilder<String, NumberOnlyBuildLabel> builder = new DataSetBuilder<String, NumberOnlyBuildLabel>();
-
-        for (AppThwackTestResult result : results) {
-            // Create label for this result using its Jenkins build number.
-            AbstractBuild<?, ?> build = result.getOwner();
-            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
-
-            // Attach memory average value for each result in our trend.
-            float memoryAvg = result.getMemoryAvg();
-            builder.add(memoryAvg, "Memory", label);
-        }
-
-        CategoryDataset dataset = builder.build();
-        Color[] colors = new Color[] { AppThwackGraph.PassColor };
-        return new AppThwackGraph(owner, isCompleted, getGraphSize(), dataset, "Build #", "Memory Average (KB)", colors);
+    public static AppThwackGraph createMemoryTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, AppThwackMetricsStore.Series series) {
+        return createTrendGraph(owner, isCompleted, series, Column.MEMORY, "Memory", "Memory Average (KB)", AppThwackGraph.PassColor);
     }
 
     /**
      * Generate a thread count trend graph for recent results.
      * @param owner build which owns the latest result
      * @param isCompleted flag to denote if the result is completed which determines our caching
-     * @param results list of previous to latest results which generate the trend
+     * @param series metrics of previous to latest results which generate the trend
      * @return
      */
-    public static Graph createThreadTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, List<AppThwackTestResult> results) {
-        DataSetBuilder<String, NumberOnlyBuildLabel> builder = new DataSetBuilder<String, NumberOnlyBuildLabel>();
-
-        for (AppThwackTestResult result : results) {
-            // Create label for this result using its Jenkins build number.
-            AbstractBuild<?, ?> build = result.getOwner();
-            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
-
-            // Attach thread count average value for each result in our trend.
-            float threadAvg = result.getThreadAvg();
-            builder.add(threadAvg, "Threads", label);
-        }
-
-        CategoryDataset dataset = builder.build();
-        Color[] colors = new Color[] { AppThwackGraph.PassColor };
-        return new AppThwackGraph(owner, isCompleted, getGraphSize(), dataset, "Build #", "Threads Average", colors);
+    public static AppThwackGraph createThreadTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, AppThwackMetricsStore.Series series) {
+        return createTrendGraph(owner, isCompleted, series, Column.THREADS, "Threads", "Threads Average", AppThwackGraph.PassColor);
     }
 
     /**
      * Generate a frame draw time trend graph for recent results.
      * @param owner build which owns the latest result
      * @param isCompleted flag to denote if the result is completed which determines our caching
-     * @param results list of previous to latest results which generate the trend
+     * @param series metrics of previous to latest results which generate the trend
      * @return
      */
-    public static Graph createFrameDrawTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, List<AppThwackTestResult> results) {
-        DataSetBuilder<String, NumberOnlyBuildLabel> builder = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+    public static AppThwackGraph createFrameDrawTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, AppThwackMetricsStore.Series series) {
+        return createTrendGraph(owner, isCompleted, series, Column.DRAW_TIME, "Frame Draw Time", "Frame Draw Time Average (ms)", AppThwackGraph.PassColor);
+    }
 
-        for (AppThwackTestResult result : results) {
-            // Create label for this result using its Jenkins build number.
-            AbstractBuild<?, ?> build = result.getOwner();
-            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
+    /**
+     * Generate a FPS trend graph for recent results.
+     * @param owner build which owns the latest result
+     * @param isCompleted flag to denote if the result is completed which determines our caching
+     * @param series metrics of previous to latest results which generate the trend
+     * @return
+     */
+    public static AppThwackGraph createFpsTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, AppThwackMetricsStore.Series series) {
+        return createTrendGraph(owner, isCompleted, series, Column.FPS, "FPS", "FPS Average", AppThwackGraph.PassColor);
+    }
 
-            // Attach Frame Draw Times average value for each result in our trend.
-            float drawTime = result.getDrawTimeAvg();
-            builder.add(drawTime, "Frame Draw Time", label);
+    /**
+     * Generate a single value trend graph of the given metric for recent results.
+     */
+    private static AppThwackGraph createTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, AppThwackMetricsStore.Series series,
+            Column column, String row, String yLabel, Color color) {
+        DataSetBuilder<String, BuildNumberLabel> builder = new DataSetBuilder<String, BuildNumberLabel>();
+
+        series = series.downsample(MaxGraphPoints, column);
+        for (int i = 0; i < series.size(); i++) {
+            // Attach the value for each result in our trend, labeled with its Jenkins build number.
+            builder.add(series.get(column, i), row, new BuildNumberLabel(series.getNumber(i)));
         }
 
         CategoryDataset dataset = builder.build();
-        Color[] colors = new Color[] { AppThwackGraph.PassColor };
-        return new AppThwackGraph(owner, isCompleted, getGraphSize(), dataset, "Build #", "Frame Draw Time Average (ms)", colors);
+        Color[] colors = new Color[] { color };
+        return new AppThwackGraph(owner, isCompleted, getGraphSize(), dataset, "Build #", yLabel, colors);
     }
 
     /**
-     * Generate a FPS trend graph for recent results.
-     * @param owner build which owns the latest result
-     * @param isCompleted flag to denote if the result is completed which determines our caching
-     * @param results list of previous to latest results which generate the trend
-     * @return
+     * Graph column label of a build, which unlike {@link hudson.util.ChartUtil.NumberOnlyBuildLabel}
+     * doesn't require the build itself to be loaded.
      */
-    public static Graph createFpsTrendGraph(AbstractBuild<?, ?> owner, Boolean isCompleted, List<AppThwackTestResult> results) {
-        DataSetBuilder<String, NumberOnlyBuildLabel> builder = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+    public static class BuildNumberLabel implements Comparable<BuildNumberLabel> {
 
-        for (AppThwackTestResult result : results) {
-            // Create label for this result using its Jenkins build number.
-            AbstractBuild<?, ?> build = result.getOwner();
-            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
+        private final int number;
 
-            // Attach FPS average value for each result in our trend.
-            float fps = result.getFpsAvg();
-            builder.add(fps, "FPS", label);
+        public BuildNumberLabel(int number) {
+            this.number = number;
         }
 
-        CategoryDataset dataset = builder.build();
-        Color[] colors = new Color[] { AppThwackGraph.PassColor };
-        return new AppThwackGraph(owner, isCompleted, getGraphSize(), dataset, "Build #", "FPS Average", colors);
+        public int compareTo(BuildNumberLabel that) {
+            return (number < that.number) ? -1 : ((number == that.number) ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof BuildNumberLabel) && ((BuildNumberLabel) o).number == number;
+        }
+
+        @Override
+        public int hashCode() {
+            return number;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d", number);
+        }
     }
 
-    private static CategoryDataset createDataset(List<Number> values, List<String> rows, List<NumberOnlyBuildLabel> columns) {
+    private static CategoryDataset createDataset(List<Number> values, List<String> rows, List<BuildNumberLabel> columns) {
         DefaultCategoryDataset dataset = new DefaultCategoryDataset();
         for (int i=0; i<values.size(); i++) {
             dataset.addValue(values.get(i), rows.get(i), columns.get(i));
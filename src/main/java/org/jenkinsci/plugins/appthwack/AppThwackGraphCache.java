@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hudson.model.AbstractProject;
+
+/**
+ * Plugin-wide cache of rendered trend graph images.
+ *
+ * Trend graphs of completed results only change when a new AppThwack build of the same project
+ * completes, yet every page view which misses the browser cache used to render them again. Rendered
+ * PNGs are kept here, least recently used first out once the cache exceeds its size. All graphs of
+ * a project are invalidated whenever one of its AppThwack builds is recorded or deleted.
+ *
+ */
+public class AppThwackGraphCache {
+
+    private static final long DefaultMaxSize = 16 * 1024 * 1024;
+
+    private static final AppThwackGraphCache instance = new AppThwackGraphCache(DefaultMaxSize);
+
+    private final long maxSize;
+    private long size;
+
+    private final LinkedHashMap<String, byte[]> images = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    public AppThwackGraphCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the shared graph cache.
+     * @return
+     */
+    public static AppThwackGraphCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Return the rendered image stored under the given key or null if there is none.
+     * @param key
+     * @return
+     */
+    public synchronized byte[] get(String key) {
+        return images.get(key);
+    }
+
+    /**
+     * Store the rendered image under the given key, evicting the least recently used images if the cache is full.
+     * @param key
+     * @param image
+     */
+    public synchronized void put(String key, byte[] image) {
+        if (image.length > maxSize) {
+            return;
+        }
+        byte[] previous = images.put(key, image);
+        if (previous != null) {
+            size -= previous.length;
+        }
+        size += image.length;
+        Iterator<Map.Entry<String, byte[]>> iterator = images.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            size -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drop all images whose key starts with the given prefix (a project).
+     * @param prefix
+     */
+    public synchronized void invalidate(String prefix) {
+        Iterator<Map.Entry<String, byte[]>> iterator = images.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, byte[]> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the key prefix shared by all graphs of the given project.
+     * @param project
+     * @return
+     */
+    public static String getProjectKey(AbstractProject<?, ?> project) {
+        return project.getRootDir().getAbsolutePath() + "|";
+    }
+}
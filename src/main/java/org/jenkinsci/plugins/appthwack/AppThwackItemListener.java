@@ -0,0 +1,33 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.io.File;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+/**
+ * Drops the cached {@link AppThwackBuildIndex}, {@link AppThwackMetricsStore} and trend graphs of jobs which are
+ * renamed or deleted. They're keyed by the root directory of the job, which a rename moves and a delete removes.
+ *
+ */
+@Extension
+public class AppThwackItemListener extends ItemListener {
+
+    @Override
+    public void onRenamed(Item item, String oldName, String newName) {
+        evict(new File(item.getRootDir().getParentFile(), oldName));
+    }
+
+    @Override
+    public void onDeleted(Item item) {
+        evict(item.getRootDir());
+    }
+
+    private static void evict(File rootDir) {
+        AppThwackBuildIndex.evict(rootDir);
+        AppThwackMetricsStore.evict(rootDir);
+        AppThwackGraphCache.getInstance().invalidate(rootDir.getAbsolutePath() + "|");
+        AppThwackGraphCache.getInstance().invalidate(rootDir.getAbsolutePath() + File.separator);
+    }
+}
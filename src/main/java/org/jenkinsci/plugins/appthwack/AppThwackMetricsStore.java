@@ -0,0 +1,719 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Append-only, columnar store of the metrics of all completed AppThwack builds of a project.
+ *
+ * Each metric lives in its own file of fixed width (4 byte) values, one value per row. The columns
+ * are read once when the store is loaded and kept as a few KB of arrays, so graphs neither deserialize
+ * build records nor parse the performance values stored as strings. Nothing stays mapped or open,
+ * so the files never pin the job directory (renames and deletes on Windows).
+ *
+ * Rows are only ever appended. A build which is recorded again appends a new row which supersedes
+ * the previous one and deleted builds append a tombstone row. Superseded rows are dropped when the
+ * store is loaded once they outnumber the live ones. Compacted and newly seeded stores are written to
+ * a separate directory which then replaces the store directory, so an interrupted compaction or seed
+ * never leaves a partial store behind.
+ *
+ * The store has a generation which goes up whenever its rows change, including when it is compacted or
+ * seeded again, and is kept in a file next to the columns so it never repeats across restarts. It
+ * identifies the contents of the store to graph caches and HTTP validators.
+ *
+ * The store is seeded from the {@link AppThwackBuildIndex}; until that index has been built (or while
+ * the store can't be loaded) the project has an empty, pending store which isn't kept.
+ *
+ */
+public class AppThwackMetricsStore {
+
+    private static final Logger LOGGER = Logger.getLogger(AppThwackMetricsStore.class.getName());
+
+    private static final String StoreDirName = "appthwack-metrics";
+    private static final String NewDirSuffix = ".new";
+    private static final String OldDirSuffix = ".old";
+    private static final int ValueSize = 4;
+    private static final String GenerationFileName = "generation.bin";
+
+    /**
+     * Columns of the store. The build number and row status are integers, all other columns floats.
+     */
+    public enum Column {
+        NUMBER("builds"), STATUS("status"), PASS("pass"), WARN("warn"), FAIL("fail"), TOTAL("total"), DURATION("duration"),
+        CPU("cpu"), MEMORY("memory"), THREADS("threads"), DRAW_TIME("drawTime"), FPS("fps");
+
+        private final String key;
+
+        Column(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Return the name of this column in JSON trend data.
+         * @return
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Return the metric column with the given JSON key or null if there is none.
+         * @param key
+         * @return
+         */
+        public static Column fromKey(String key) {
+            for (Column column : values()) {
+                if (column.ordinal() >= PASS.ordinal() && column.key.equals(key)) {
+                    return column;
+                }
+            }
+            return null;
+        }
+
+        private String getFileName() {
+            return String.format("%s.bin", name().toLowerCase());
+        }
+    }
+
+    private static final int StatusDeleted = 0;
+    private static final int StatusCompleted = 1;
+
+    private static final Map<String, AppThwackMetricsStore> stores = new ConcurrentHashMap<String, AppThwackMetricsStore>();
+
+    private final File dir;
+    private final boolean pending;
+    /**
+     * Values of each column, floats as their raw int bits.
+     */
+    private int[][] data = new int[Column.values().length][0];
+    private int rows;
+    private long generation;
+
+    /**
+     * Metrics of the most recent builds, in increasing build number order.
+     */
+    public static class Series {
+
+        /**
+         * Identifies how {@link #downsample(int, Column...)} selects builds, part of the validators of downsampled data.
+         */
+        public static final String DownsampleMethod = "minmax";
+
+        private final int[] numbers;
+        private final float[][] values;
+
+        Series(int[] numbers, float[][] values) {
+            this.numbers = numbers;
+            this.values = values;
+        }
+
+        /**
+         * Return the number of builds in this series.
+         * @return
+         */
+        public int size() {
+            return numbers.length;
+        }
+
+        /**
+         * Return the build number of the i-th build of this series.
+         * @param i
+         * @return
+         */
+        public int getNumber(int i) {
+            return numbers[i];
+        }
+
+        /**
+         * Return the value of the given column for the i-th build of this series.
+         * @param column
+         * @param i
+         * @return
+         */
+        public float get(Column column, int i) {
+            return values[column.ordinal()][i];
+        }
+
+        /**
+         * Return the given columns of this series as compact JSON trend data:
+         * the build numbers and one array of values per column, all in increasing build number order.
+         * @param columns columns to include
+         * @return
+         */
+        public JSONObject toJSON(Column... columns) {
+            JSONArray builds = new JSONArray();
+            for (int number : numbers) {
+                builds.element(number);
+            }
+            JSONObject json = new JSONObject();
+            json.element(Column.NUMBER.getKey(), builds);
+            for (Column column : columns) {
+                JSONArray series = new JSONArray();
+                for (float value : values[column.ordinal()]) {
+                    series.element((double) value);
+                }
+                json.element(column.getKey(), series);
+            }
+            return json;
+        }
+
+        /**
+         * Return the metric columns requested by a trend data request: all of them if no metric is given,
+         * pass/warn/fail for "result", otherwise the single named column.
+         * @param metric
+         * @return columns or null if the metric is unknown
+         */
+        public static Column[] getColumns(String metric) {
+            if (metric == null || metric.isEmpty()) {
+                return Arrays.copyOfRange(Column.values(), Column.PASS.ordinal(), Column.values().length);
+            }
+            if (metric.equals("result")) {
+                return new Column[] { Column.PASS, Column.WARN, Column.FAIL };
+            }
+            Column column = Column.fromKey(metric);
+            return (column == null) ? null : new Column[] { column };
+        }
+
+        /**
+         * Return a series of (at most) the given number of builds which preserves the peaks and dips of each of the
+         * given columns. The builds are split into buckets and the builds with the lowest and highest value of every
+         * column in a bucket are kept, using as many buckets as fit. Columns are selected on independently, so a
+         * column of large values (memory in KB) can't drown out the spikes of another (failures). The first and
+         * last build are always kept.
+         * @param threshold maximum number of builds to keep
+         * @param columns columns whose extremes are kept
+         * @return this series if it is small enough, a downsampled copy otherwise
+         */
+        public Series downsample(int threshold, Column... columns) {
+            int n = numbers.length;
+            if (threshold >= n || threshold < 3 || columns.length == 0) {
+                return this;
+            }
+
+            // Find the largest number of buckets whose extremes still fit.
+            boolean[] selected = null;
+            int low = 1;
+            int high = Math.max(1, (threshold - 2) / 2);
+            while (low <= high) {
+                int buckets = (low + high) >>> 1;
+                boolean[] keep = selectExtremes(buckets, columns);
+                if (count(keep) <= threshold) {
+                    selected = keep;
+                    low = buckets + 1;
+                }
+                else {
+                    high = buckets - 1;
+                }
+            }
+            if (selected == null) {
+                // Too many columns for their extremes to fit, fall back to evenly spaced builds.
+                selected = new boolean[n];
+                for (int i = 0; i < threshold; i++) {
+                    selected[(int) ((long) i * (n - 1) / (threshold - 1))] = true;
+                }
+            }
+
+            int size = count(selected);
+            int[] sampledNumbers = new int[size];
+            float[][] sampledValues = new float[values.length][size];
+            for (int i = 0, j = 0; i < n; i++) {
+                if (!selected[i]) {
+                    continue;
+                }
+                sampledNumbers[j] = numbers[i];
+                for (int c = 0; c < values.length; c++) {
+                    sampledValues[c][j] = values[c][i];
+                }
+                j++;
+            }
+            return new Series(sampledNumbers, sampledValues);
+        }
+
+        /**
+         * Mark the first and last build and the builds with the lowest and highest value of each of the given
+         * columns within each of the given number of buckets in between.
+         */
+        private boolean[] selectExtremes(int buckets, Column[] columns) {
+            int n = numbers.length;
+            boolean[] keep = new boolean[n];
+            keep[0] = true;
+            keep[n - 1] = true;
+            double bucketSize = (double) (n - 2) / buckets;
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                int start = (int) (bucket * bucketSize) + 1;
+                int end = Math.min((int) ((bucket + 1) * bucketSize) + 1, n - 1);
+                if (start >= end) {
+                    continue;
+                }
+                for (Column column : columns) {
+                    float[] y = values[column.ordinal()];
+                    int min = start;
+                    int max = start;
+                    for (int i = start + 1; i < end; i++) {
+                        if (y[i] < y[min]) {
+                            min = i;
+                        }
+                        if (y[i] > y[max]) {
+                            max = i;
+                        }
+                    }
+                    keep[min] = true;
+                    keep[max] = true;
+                }
+            }
+            return keep;
+        }
+
+        private static int count(boolean[] keep) {
+            int count = 0;
+            for (boolean k : keep) {
+                if (k) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Return a copy of this series with the given (live) result of the given build appended.
+         * @param number build number of the result
+         * @param result
+         * @return
+         */
+        public Series with(int number, AppThwackTestResult result) {
+            int n = numbers.length;
+            int[] newNumbers = Arrays.copyOf(numbers, n + 1);
+            newNumbers[n] = number;
+            float[] row = toRow(result);
+            float[][] newValues = new float[values.length][];
+            for (int c = 0; c < values.length; c++) {
+                newValues[c] = Arrays.copyOf(values[c], n + 1);
+                if (c >= Column.PASS.ordinal()) {
+                    newValues[c][n] = row[c - Column.PASS.ordinal()];
+                }
+            }
+            return new Series(newNumbers, newValues);
+        }
+    }
+
+    private AppThwackMetricsStore(File dir, boolean pending) {
+        this.dir = dir;
+        this.pending = pending;
+    }
+
+    /**
+     * Return the metrics store of the given project, creating it from the build index if it doesn't exist.
+     * @param project
+     * @return
+     */
+    public static AppThwackMetricsStore get(AbstractProject<?, ?> project) {
+        String key = project.getRootDir().getAbsolutePath();
+        AppThwackMetricsStore store = stores.get(key);
+        if (store == null) {
+            synchronized (stores) {
+                store = stores.get(key);
+                if (store == null) {
+                    store = load(project);
+                    if (store.pending) {
+                        return store;
+                    }
+                    stores.put(key, store);
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Drop the stores of the project with the given root directory and of all projects below it (in a folder),
+     * e.g. because the job has been renamed or deleted.
+     * @param rootDir
+     */
+    public static void evict(File rootDir) {
+        String path = rootDir.getAbsolutePath();
+        Iterator<String> iterator = stores.keySet().iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            if (key.equals(path) || key.startsWith(path + File.separator)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static AppThwackMetricsStore load(AbstractProject<?, ?> project) {
+        File dir = new File(project.getRootDir(), StoreDirName);
+        AppThwackBuildIndex index = AppThwackBuildIndex.get(project);
+        try {
+            recover(dir);
+            if (dir.isDirectory()) {
+                return open(dir);
+            }
+            if (!index.isReady()) {
+                return new AppThwackMetricsStore(dir, true);
+            }
+            // No store yet: Seed it with the completed builds of the index, oldest first.
+            AppThwackMetricsStore seed = create(new File(dir.getPath() + NewDirSuffix));
+            List<AppThwackBuildIndex.Entry> entries = index.getEntries();
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                AppThwackBuildIndex.Entry entry = entries.get(i);
+                if (entry.isCompleted()) {
+                    seed.appendRow(entry.getNumber(), StatusCompleted, new float[] {
+                            entry.getPassCount(), entry.getWarnCount(), entry.getFailCount(), entry.getTotalCount(),
+                            entry.getDuration(), entry.getCpuAvg(), entry.getMemoryAvg(), entry.getThreadAvg(),
+                            entry.getDrawTimeAvg(), entry.getFpsAvg() });
+                }
+            }
+            return seed.replace(dir);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to load AppThwack metrics store %s", dir), e);
+            return new AppThwackMetricsStore(dir, true);
+        }
+    }
+
+    /**
+     * Open the existing store in the given directory, compacting it if needed.
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    static AppThwackMetricsStore open(File dir) throws IOException {
+        AppThwackMetricsStore store = new AppThwackMetricsStore(dir, false);
+        store.read();
+        return store.compact();
+    }
+
+    /**
+     * Create an empty store in the given directory, replacing whatever it contains.
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    static AppThwackMetricsStore create(File dir) throws IOException {
+        // Start past any generation a previous store in this place reported.
+        return create(dir, System.currentTimeMillis());
+    }
+
+    private static AppThwackMetricsStore create(File dir, long generation) throws IOException {
+        deleteDir(dir);
+        if (!dir.mkdirs()) {
+            throw new IOException(String.format("Unable to create directory %s", dir));
+        }
+        AppThwackMetricsStore store = new AppThwackMetricsStore(dir, false);
+        for (Column column : Column.values()) {
+            truncate(store.getFile(column), 0);
+        }
+        store.writeGeneration(generation);
+        return store;
+    }
+
+    /**
+     * Return the version of this store, which goes up whenever a row is appended or the store is compacted.
+     * @return
+     */
+    public synchronized long getVersion() {
+        return generation;
+    }
+
+    /**
+     * Append the metrics of the given build, if its AppThwack results are completed.
+     * @param build
+     */
+    public synchronized void append(AbstractBuild<?, ?> build) {
+        // Pending stores are seeded from the build index, which records the build as well.
+        if (pending) {
+            return;
+        }
+        AppThwackTestResultAction action = build.getAction(AppThwackTestResultAction.class);
+        if (action == null || action.getResult() == null || !action.getResult().isCompleted()) {
+            return;
+        }
+        try {
+            appendRow(build.getNumber(), StatusCompleted, toRow(action.getResult()));
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to record AppThwack metrics of %s", build), e);
+        }
+    }
+
+    /**
+     * Append a tombstone for the given build number.
+     * @param number
+     */
+    public synchronized void remove(int number) {
+        if (pending) {
+            return;
+        }
+        try {
+            appendRow(number, StatusDeleted, new float[Column.values().length - 2]);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to remove AppThwack metrics of build %d", number), e);
+        }
+    }
+
+    /**
+     * Return the metrics of (up to) the n most recent completed builds before the given build number.
+     * @param before build number to start from (exclusive)
+     * @param n maximum number of builds to return
+     * @return
+     */
+    public synchronized Series query(int before, int n) {
+        Column[] columns = Column.values();
+        if (pending) {
+            return new Series(new int[0], new float[columns.length][0]);
+        }
+        int[] numbers = new int[Math.max(0, Math.min(n, rows))];
+        float[][] values = new float[columns.length][numbers.length];
+        int count = 0;
+
+        // Scan backwards, the latest row of each build wins.
+        int[] numberColumn = data[Column.NUMBER.ordinal()];
+        int[] statusColumn = data[Column.STATUS.ordinal()];
+        Set<Integer> seen = new HashSet<Integer>();
+        for (int row = rows - 1; row >= 0 && count < numbers.length; row--) {
+            int number = numberColumn[row];
+            if (number >= before || !seen.add(number)) {
+                continue;
+            }
+            if (statusColumn[row] != StatusCompleted) {
+                continue;
+            }
+            numbers[count] = number;
+            for (int c = Column.PASS.ordinal(); c < columns.length; c++) {
+                values[c][count] = Float.intBitsToFloat(data[c][row]);
+            }
+            count++;
+        }
+
+        // Return in increasing build number order.
+        int[] orderedNumbers = new int[count];
+        float[][] orderedValues = new float[columns.length][count];
+        for (int i = 0; i < count; i++) {
+            orderedNumbers[i] = numbers[count - 1 - i];
+            for (int c = 0; c < columns.length; c++) {
+                orderedValues[c][i] = values[c][count - 1 - i];
+            }
+        }
+        return new Series(orderedNumbers, orderedValues);
+    }
+
+    /**
+     * Return the values of the metric columns (all but the build number and status) of the given result.
+     */
+    private static float[] toRow(AppThwackTestResult result) {
+        return new float[] {
+                result.getPassCount(), result.getWarnCount(), result.getFailCount(), result.getTotalCount(),
+                result.getDuration(), result.getCpuAvg(), result.getMemoryAvg(), result.getThreadAvg(),
+                result.getDrawTimeAvg(), result.getFpsAvg() };
+    }
+
+    /**
+     * Read all columns, dropping a partially written last row.
+     */
+    private void read() throws IOException {
+        readGeneration();
+        long length = Long.MAX_VALUE;
+        for (Column column : Column.values()) {
+            length = Math.min(length, getFile(column).length());
+        }
+        rows = (int) (length / ValueSize);
+        for (Column column : Column.values()) {
+            File file = getFile(column);
+            truncate(file, (long) rows * ValueSize);
+            ByteBuffer buffer = ByteBuffer.allocate(rows * ValueSize);
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+                    // Keep reading until the column is complete.
+                }
+            }
+            finally {
+                raf.close();
+            }
+            buffer.flip();
+            int[] values = new int[rows];
+            buffer.asIntBuffer().get(values);
+            data[column.ordinal()] = values;
+        }
+    }
+
+    /**
+     * Return a store which keeps only the latest row of each live build, if superseded rows outnumber the live ones.
+     * The compacted rows are written to a new directory which then replaces the directory of this store.
+     * @return the compacted store or this store if it doesn't need compacting
+     */
+    private AppThwackMetricsStore compact() throws IOException {
+        Series live = query(Integer.MAX_VALUE, rows);
+        if (rows - live.size() <= live.size()) {
+            return this;
+        }
+        AppThwackMetricsStore compacted = create(new File(dir.getPath() + NewDirSuffix), generation + 1);
+        for (int i = 0; i < live.size(); i++) {
+            float[] values = new float[Column.values().length - 2];
+            for (int c = Column.PASS.ordinal(); c < Column.values().length; c++) {
+                values[c - Column.PASS.ordinal()] = live.get(Column.values()[c], i);
+            }
+            compacted.appendRow(live.getNumber(i), StatusCompleted, values);
+        }
+        return compacted.replace(dir);
+    }
+
+    /**
+     * Move this complete store into the given directory, replacing the store it holds. Every step is a rename,
+     * {@link #recover(File)} completes or rolls back a replacement which was interrupted.
+     * @param target store directory
+     * @return this store, now in the given directory
+     */
+    private AppThwackMetricsStore replace(File target) throws IOException {
+        File old = new File(target.getPath() + OldDirSuffix);
+        deleteDir(old);
+        if (target.exists() && !target.renameTo(old)) {
+            throw new IOException(String.format("Unable to move %s to %s", target, old));
+        }
+        if (!dir.renameTo(target)) {
+            if (old.exists() && !old.renameTo(target)) {
+                LOGGER.warning(String.format("Unable to restore %s from %s", target, old));
+            }
+            throw new IOException(String.format("Unable to move %s to %s", dir, target));
+        }
+        deleteDir(old);
+        AppThwackMetricsStore store = new AppThwackMetricsStore(target, false);
+        store.data = data;
+        store.rows = rows;
+        store.generation = generation;
+        return store;
+    }
+
+    /**
+     * Clean up after a compaction or seed of the store in the given directory which was interrupted:
+     * drop the partially written new store and put the previous store back if it had already been moved aside.
+     * @param dir store directory
+     */
+    static void recover(File dir) throws IOException {
+        deleteDir(new File(dir.getPath() + NewDirSuffix));
+        File old = new File(dir.getPath() + OldDirSuffix);
+        if (!old.exists()) {
+            return;
+        }
+        if (dir.exists()) {
+            deleteDir(old);
+        }
+        else if (!old.renameTo(dir)) {
+            throw new IOException(String.format("Unable to move %s to %s", old, dir));
+        }
+    }
+
+    /**
+     * Append a row to the column files and the columns read from them.
+     */
+    void appendRow(int number, int status, float[] values) throws IOException {
+        // Bump the generation first, a row which is lost after it only costs a cache miss.
+        writeGeneration(generation + 1);
+        Column[] columns = Column.values();
+        int[] row = new int[columns.length];
+        row[Column.NUMBER.ordinal()] = number;
+        row[Column.STATUS.ordinal()] = status;
+        for (int c = Column.PASS.ordinal(); c < columns.length; c++) {
+            row[c] = Float.floatToIntBits(values[c - Column.PASS.ordinal()]);
+        }
+        for (Column column : columns) {
+            ByteBuffer buffer = ByteBuffer.allocate(ValueSize);
+            buffer.putInt(row[column.ordinal()]);
+            buffer.flip();
+            RandomAccessFile file = new RandomAccessFile(getFile(column), "rw");
+            try {
+                file.getChannel().write(buffer, (long) rows * ValueSize);
+            }
+            finally {
+                file.close();
+            }
+        }
+        for (Column column : columns) {
+            int[] stored = data[column.ordinal()];
+            if (stored.length == rows) {
+                stored = Arrays.copyOf(stored, Math.max(16, rows * 2));
+                data[column.ordinal()] = stored;
+            }
+            stored[rows] = row[column.ordinal()];
+        }
+        rows++;
+    }
+
+    /**
+     * Read the generation of this store, starting a new one for stores which don't have one.
+     */
+    private void readGeneration() throws IOException {
+        File file = new File(dir, GenerationFileName);
+        if (file.length() < 8) {
+            writeGeneration(System.currentTimeMillis());
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            generation = raf.readLong();
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private void writeGeneration(long generation) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, GenerationFileName), "rw");
+        try {
+            raf.writeLong(generation);
+        }
+        finally {
+            raf.close();
+        }
+        this.generation = generation;
+    }
+
+    private File getFile(Column column) {
+        return new File(dir, column.getFileName());
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static void deleteDir(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                throw new IOException(String.format("Unable to delete %s", file));
+            }
+        }
+        if (!dir.delete()) {
+            throw new IOException(String.format("Unable to delete %s", dir));
+        }
+    }
+}
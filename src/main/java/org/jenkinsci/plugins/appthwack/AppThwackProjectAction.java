@@ -7,11 +7,13 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.util.ChartUtil;
 import hudson.util.Graph;
+import jenkins.model.Jenkins;
 
 import java.io.IOException;
 import java.util.Calendar;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -29,6 +31,8 @@ import org.kohsuke.stapler.StaplerResponse;
  */
 public class AppThwackProjectAction implements Action {
 
+    static final int DefaultProjectTrendGraphSize = 100;
+
     private AbstractProject<?, ?> project;
 
     /**
@@ -64,11 +68,11 @@ public class AppThwackProjectAction implements Action {
     }
 
     /**
-     * Return the action of all previous builds associated with AppThwack
-     * @return all AppThwack build actions for this project
+     * Return the actions of the previous builds associated with AppThwack, as many as the project trend shows
+     * @return recent AppThwack build actions for this project
      */
     public ArrayList<AppThwackTestResultAction> getLastBuildActions() {
-        return AppThwackUtils.previousAppThwackBuilds(project);
+        return AppThwackUtils.previousAppThwackBuilds(project, getProjectTrendGraphSize());
     }
 
     /**
@@ -77,8 +81,7 @@ public class AppThwackProjectAction implements Action {
      * @return
      */
     public ArrayList<AppThwackTestResultAction> getLastBuildActions(int n) {
-        ArrayList<AppThwackTestResultAction> actions = getLastBuildActions();
-        return new ArrayList<AppThwackTestResultAction>(actions.subList(0, Math.min(n, actions.size())));
+        return AppThwackUtils.previousAppThwackBuilds(project, n);
     }
 
     /**
@@ -124,8 +127,48 @@ public class AppThwackProjectAction implements Action {
         }
 
         // Create new graph for the AppThwack results of all runs in this project.
-        Graph graph = AppThwackGraph.createResultTrendGraph(prev.getOwner(), false, result.getPreviousResults());
-        graph.doPng(request, response);
+        int size = getProjectTrendGraphSize();
+        AppThwackMetricsStore store = AppThwackMetricsStore.get(project);
+        AppThwackGraph graph = AppThwackGraph.createResultTrendGraph(prev.getOwner(), false, store.query(Integer.MAX_VALUE, size));
+        String key = String.format("%sproject|%d|%d", AppThwackGraphCache.getProjectKey(project), size, store.getVersion());
+        graph.doPng(request, response, key, AppThwackGraph.getTrendETag(store.getVersion(), size));
+    }
+
+    /**
+     * Serve the trend data (build numbers and metric values) of all recent AppThwack builds of this project
+     * as JSON, for graphs rendered by the browser. The optional "metric" parameter limits the data to a single
+     * metric (or "result" for pass/warn/fail counts).
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    public void doTrend(StaplerRequest request, StaplerResponse response) throws IOException {
+        AppThwackMetricsStore.Column[] columns = AppThwackMetricsStore.Series.getColumns(request.getParameter("metric"));
+        if (columns == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown metric");
+            return;
+        }
+
+        // The data only changes when the metrics store, the trend window or the downsampling do,
+        // let clients revalidate against all of them.
+        AppThwackMetricsStore store = AppThwackMetricsStore.get(project);
+        int size = getProjectTrendGraphSize();
+        String etag = String.format("\"%s\"", AppThwackGraph.getTrendETag(store.getVersion(), size));
+        if (AppThwackUtils.checkETag(request, response, etag)) {
+            return;
+        }
+
+        AppThwackMetricsStore.Series series = store.query(Integer.MAX_VALUE, size);
+        AppThwackUtils.writeJSON(response, series.downsample(AppThwackGraph.MaxGraphPoints, columns).toJSON(columns));
+    }
+
+    /**
+     * Return the number of builds shown by the trend graph of this project.
+     * @return
+     */
+    private int getProjectTrendGraphSize() {
+        AppThwackRecorder.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(AppThwackRecorder.DescriptorImpl.class);
+        return (descriptor != null) ? descriptor.getProjectTrendGraphSize() : DefaultProjectTrendGraphSize;
     }
 
     public String getIconFileName() {
@@ -0,0 +1,216 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket which limits the rate of AppThwack API requests made by all jobs together.
+ *
+ * Tokens refill at a steady rate and up to a small burst may be stored while idle. Requests
+ * queue per job and tokens are handed to the jobs with queued requests in turn, so a build
+ * issuing many requests at once (e.g. scheduling a run per shard) only takes its share while
+ * other jobs wait as well. Callers either block for a token or, like the run poller, reserve
+ * a ticket which keeps its place in the queue until they come back for it.
+ *
+ */
+public class AppThwackRateLimiter {
+
+    private static final int BurstSeconds = 10;
+
+    /**
+     * Request of a job queued for a token.
+     */
+    public static class Ticket {
+        private final String job;
+        private boolean granted;
+
+        Ticket(String job) {
+            this.job = job;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition granted = lock.newCondition();
+
+    /**
+     * Queued requests of each job, in the order the jobs are served.
+     */
+    private final LinkedHashMap<String, Deque<Ticket>> queues = new LinkedHashMap<String, Deque<Ticket>>();
+
+    private long interval;
+    private double maxTokens;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * @param requestsPerMinute steady rate of requests
+     */
+    public AppThwackRateLimiter(int requestsPerMinute) {
+        setRate(requestsPerMinute);
+        this.tokens = maxTokens;
+    }
+
+    /**
+     * Change the steady rate of requests, e.g. once the global configuration changed.
+     * @param requestsPerMinute
+     */
+    public void setRate(int requestsPerMinute) {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            this.interval = TimeUnit.MINUTES.toNanos(1) / Math.max(1, requestsPerMinute);
+            this.maxTokens = Math.max(1, requestsPerMinute * BurstSeconds / 60);
+            this.tokens = Math.min(tokens, maxTokens);
+            dispatch(System.nanoTime());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until the given job may make a request.
+     * @param job name of the job making the request
+     * @return time (ms) spent waiting
+     * @throws InterruptedException
+     */
+    public long acquire(String job) throws InterruptedException {
+        long start = System.nanoTime();
+        lock.lockInterruptibly();
+        try {
+            Ticket ticket = enqueue(job);
+            try {
+                while (!ticket.granted) {
+                    long delay = dispatch(System.nanoTime());
+                    if (!ticket.granted) {
+                        granted.awaitNanos(delay);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                cancel(ticket);
+                throw e;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Queue a request of the given job without blocking. The ticket keeps its place until
+     * {@link #tryAcquire(Ticket)} reports its token has been granted.
+     * @param job name of the job making the request
+     * @return
+     */
+    public Ticket reserve(String job) {
+        lock.lock();
+        try {
+            Ticket ticket = enqueue(job);
+            dispatch(System.nanoTime());
+            return ticket;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check whether the token of a reserved request has been granted.
+     * @param ticket ticket returned by {@link #reserve(String)}
+     * @return zero if the request may be made now, otherwise delay (ms) until the ticket should be checked again
+     */
+    public long tryAcquire(Ticket ticket) {
+        lock.lock();
+        try {
+            long delay = dispatch(System.nanoTime());
+            if (ticket.granted) {
+                return 0;
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give up a reserved request, handing its token back if it was already granted.
+     * @param ticket
+     */
+    public void cancel(Ticket ticket) {
+        lock.lock();
+        try {
+            if (ticket.granted) {
+                ticket.granted = false;
+                tokens = Math.min(maxTokens, tokens + 1);
+            }
+            else {
+                Deque<Ticket> queue = queues.get(ticket.job);
+                if (queue != null && queue.remove(ticket) && queue.isEmpty()) {
+                    queues.remove(ticket.job);
+                }
+            }
+            dispatch(System.nanoTime());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private Ticket enqueue(String job) {
+        Ticket ticket = new Ticket(job);
+        Deque<Ticket> queue = queues.get(job);
+        if (queue == null) {
+            queue = new ArrayDeque<Ticket>();
+            queues.put(job, queue);
+        }
+        queue.add(ticket);
+        return ticket;
+    }
+
+    /**
+     * Hand the available tokens to the queued requests, one job at a time.
+     * @param now
+     * @return delay (ns) until the next token is available
+     */
+    private long dispatch(long now) {
+        refill(now);
+        boolean dispatched = false;
+        while (tokens >= 1 && !queues.isEmpty()) {
+            Iterator<Map.Entry<String, Deque<Ticket>>> iterator = queues.entrySet().iterator();
+            Map.Entry<String, Deque<Ticket>> next = iterator.next();
+            Deque<Ticket> queue = next.getValue();
+            queue.poll().granted = true;
+            tokens -= 1;
+            dispatched = true;
+            // Move the job to the back of the line, behind every other job with queued requests.
+            iterator.remove();
+            if (!queue.isEmpty()) {
+                queues.put(next.getKey(), queue);
+            }
+        }
+        if (dispatched) {
+            granted.signalAll();
+        }
+        return Math.max(1, (long) ((1 - Math.min(1, tokens)) * interval));
+    }
+
+    /**
+     * Store the tokens which were refilled since the last request.
+     * @param now
+     */
+    private void refill(long now) {
+        if (now > refilledAt && interval > 0) {
+            tokens = Math.min(maxTokens, tokens + (double) (now - refilledAt) / interval);
+        }
+        refilledAt = Math.max(refilledAt, now);
+    }
+}
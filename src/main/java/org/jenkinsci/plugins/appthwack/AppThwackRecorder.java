@@ -9,10 +9,21 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import hudson.model.Result;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -29,6 +40,7 @@ import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -45,7 +57,19 @@ import com.appthwack.appthwack.*;
  */
 public class AppThwackRecorder extends Recorder {
 
-    private PrintStream log;
+    private static final Logger LOGGER = Logger.getLogger(AppThwackRecorder.class.getName());
+
+    private static final int MaxUploadAttempts = 4;
+    private static final long InitialUploadBackoff = 5 * 1000;
+    private static final long MaxUploadBackoff = 60 * 1000;
+    private static final int DefaultShardSamples = 5;
+    private static final int DefaultApiRequestsPerMinute = 120;
+    private static final String LookupJob = "AppThwack project and device pool lookups";
+    private static final long DefaultCacheTtl = 10 * 60 * 1000;
+    private static final long MaxCacheStaleness = 60 * 60 * 1000;
+    private static final long NegativeCacheTtl = 60 * 1000;
+    private static final int ExecutorPoolSize = 8;
+    private static final long ExecutorKeepAlive = 60 * 1000;
 
     private static final String JUNIT_TYPE = "junit";
     private static final String CALABASH_TYPE = "calabash";
@@ -60,6 +84,7 @@ public class AppThwackRecorder extends Recorder {
 
     public String projectName;
     public String devicePoolName;
+    public String additionalDevicePools;
     public String appArtifact;
     public String type;
     public String calabashFeatures;
@@ -71,16 +96,22 @@ public class AppThwackRecorder extends Recorder {
     public String uiaArtifact;
     public String uiautoArtifact;
     public String uiautoFilter;
+    public String shards;
     public String xctestArtifact;
     public String eventcount;
     public String username;
     public String password;
     public String launchdata;
     public String monkeyseed;
+    public boolean detached;
+    public boolean skipArchive;
+    public Boolean extractResults;
+    public boolean discardResultsArchive;
 
     @DataBoundConstructor
     public AppThwackRecorder(String projectName,
             String devicePoolName,
+            String additionalDevicePools,
             String appArtifact,
             String type,
             String calabashFeatures,
@@ -92,14 +123,20 @@ public class AppThwackRecorder extends Recorder {
             String uiaArtifact,
             String uiautoArtifact,
             String uiautoFilter,
+            String shards,
             String xctestArtifact,
             String eventcount,
             String username,
             String password,
             String launchdata,
-            String monkeyseed) {
+            String monkeyseed,
+            boolean detached,
+            boolean skipArchive,
+            boolean extractResults,
+            boolean discardResultsArchive) {
         this.projectName = projectName;
         this.devicePoolName = devicePoolName;
+        this.additionalDevicePools = additionalDevicePools;
         this.appArtifact = appArtifact;
         this.type = type;
         this.calabashFeatures = calabashFeatures;
@@ -111,12 +148,28 @@ public class AppThwackRecorder extends Recorder {
         this.uiaArtifact = uiaArtifact;
         this.uiautoArtifact = uiautoArtifact;
         this.uiautoFilter = uiautoFilter;
+        this.shards = shards;
         this.xctestArtifact = xctestArtifact;
         this.eventcount = eventcount;
         this.username = username;
         this.password = password;
         this.launchdata = launchdata;
         this.monkeyseed = monkeyseed;
+        this.detached = detached;
+        this.skipArchive = skipArchive;
+        this.extractResults = extractResults;
+        this.discardResultsArchive = discardResultsArchive;
+    }
+
+    /**
+     * Jobs configured before extracting the results archive became optional always extracted it, keep doing so.
+     * @return
+     */
+    protected Object readResolve() {
+        if (extractResults == null) {
+            extractResults = true;
+        }
+        return this;
     }
 
     @Override
@@ -131,7 +184,10 @@ public class AppThwackRecorder extends Recorder {
 
         EnvVars env =  build.getEnvironment(listener);
         Map<String, String> parameters = build.getBuildVariables();
-        log = listener.getLogger();
+        // Everything specific to this build is kept in locals, concurrent builds of the same job share this recorder.
+        final PrintStream log = listener.getLogger();
+        // API requests are rate limited per job, so a build issuing many requests only takes its job's share.
+        final String job = build.getProject().getFullName();
 
         // Artifacts location for this build on master.
         FilePath artifactsDir = new FilePath(build.getArtifactsDir());
@@ -143,106 +199,298 @@ public class AppThwackRecorder extends Recorder {
         FilePath root = new FilePath(build.getRootDir());
 
         // Validate user selection & input values.
-        boolean isValid = validateConfiguration() && validateTestConfiguration();
+        boolean isValid = validateConfiguration(log) && validateTestConfiguration(log);
         if (!isValid) {
-            LOG("Invalid configuration.");
+            LOG(log, "Invalid configuration.");
             return false;
         }
 
-        // Create & configure the AppThwackApi client.
-        AppThwackApi api = getAppThwackApi();
-
         // Accept 'APPTHWACK_PROJECT' build parameter as an overload from job configuration.
+        String projectName = this.projectName;
         String projectNameParameter = parameters.get("APPTHWACK_PROJECT");
         if (projectNameParameter != null && !projectNameParameter.isEmpty()) {
-            LOG(String.format("Using overloaded project '%s' from build parameters", projectNameParameter));
+            LOG(log, String.format("Using overloaded project '%s' from build parameters", projectNameParameter));
             projectName = projectNameParameter;
         }
 
-        // Get AppThwack project from user provided name.
-        LOG(String.format("Using Project '%s'", projectName));
-        AppThwackProject project = api.getProject(projectName);
-        if (project == null) {
-            LOG(String.format("Project '%s' not found.", projectName));
-            return false;
-        }
-
         // Accept 'APPTHWACK_DEVICE_POOL' build parameter as an overload from job configuration.
+        String devicePoolName = this.devicePoolName;
         String devicePoolParameter = parameters.get("APPTHWACK_DEVICE_POOL");
         if (devicePoolParameter != null) {
-            LOG(String.format("Using overloaded device pool '%s' from build parameters", devicePoolParameter));
+            LOG(log, String.format("Using overloaded device pool '%s' from build parameters", devicePoolParameter));
             devicePoolName = devicePoolParameter;
         }
 
-        // Get AppThwack device pool from user provided name.
-        LOG(String.format("Using DevicePool '%s'", devicePoolName));
-        AppThwackDevicePool devicePool = project.getDevicePool(devicePoolName);
-        if (devicePool == null) {
-            LOG(String.format("DevicePool '%s' not found.", devicePoolName));
+        // Split the tests into shards which run in parallel.
+        List<String> testFilters = getTestFilters(build, env, log);
+
+        // Get AppThwack project and device pools from user provided names on every account which has them.
+        // Each device pool gets its own run.
+        LOG(log, String.format("Using Project '%s'", projectName));
+        LOG(log, String.format("Using DevicePool '%s'", devicePoolName));
+        AppThwackAccounts accounts = getDescriptor().getAccounts();
+        Map<AppThwackAccounts.Account, Placement> placements = new LinkedHashMap<AppThwackAccounts.Account, Placement>();
+        Map<AppThwackAccounts.Account, Integer> runCounts = new LinkedHashMap<AppThwackAccounts.Account, Integer>();
+        boolean projectFound = false;
+        boolean devicePoolFound = false;
+        List<String> devicePoolErrors = null;
+        for (AppThwackAccounts.Account candidate : accounts.getAccounts()) {
+            AppThwackProject candidateProject = getDescriptor().getProject(candidate.getApiKey(), projectName, log);
+            if (candidateProject == null) {
+                continue;
+            }
+            projectFound = true;
+            AppThwackDevicePool candidatePool = getDescriptor().getDevicePool(candidate.getApiKey(), projectName, devicePoolName, log);
+            if (candidatePool == null) {
+                continue;
+            }
+            devicePoolFound = true;
+            List<String> messages = new ArrayList<String>();
+            List<AppThwackDevicePool> candidatePools = getDevicePools(candidate.getApiKey(), candidateProject, candidatePool,
+                    env.expand(additionalDevicePools), messages, log);
+            if (candidatePools == null) {
+                if (devicePoolErrors == null) {
+                    devicePoolErrors = messages;
+                }
+                continue;
+            }
+            placements.put(candidate, new Placement(candidateProject, candidatePools, messages));
+            runCounts.put(candidate, candidatePools.size() * testFilters.size());
+        }
+        if (!projectFound) {
+            LOG(log, String.format("Project '%s' not found.", projectName));
             return false;
         }
-
-        // Create/Validate app artifact and make local copy.
-        File appArtifactFile = getArtifactFile(artifactsDir, workspace, env.expand(appArtifact));
-        if (appArtifactFile == null || !appArtifactFile.exists()) {
-            LOG("Application Artifact not found.");
+        if (!devicePoolFound) {
+            LOG(log, String.format("DevicePool '%s' not found.", devicePoolName));
             return false;
         }
-
-        // Upload app.
-        LOG(String.format("Using App '%s'", appArtifactFile.getAbsolutePath()));
-        AppThwackFile app = uploadFile(api, appArtifactFile);
-        if (app == null) {
-            LOG(String.format("Failed to upload app '%s'", appArtifactFile.getAbsolutePath()));
+        if (placements.isEmpty()) {
+            for (String message : devicePoolErrors) {
+                LOG(log, message);
+            }
             return false;
         }
 
-        // Upload test content.
-        AppThwackFile tests = uploadTestContent(api, env, artifactsDir, workspace);
-        if (tests == null && requiresTestContent(type)) {
-            LOG(String.format("Failed to upload required '%s' test content.", type));
-            return false;
+        // Place the build on the least utilized account, its runs count against that account from now on.
+        final AppThwackAccounts.Account account = accounts.reserve(runCounts);
+        final int runCount = runCounts.get(account);
+        Placement placement = placements.get(account);
+        for (String message : placement.messages) {
+            LOG(log, message);
         }
+        if (accounts.getApiKeys().size() > 1) {
+            LOG(log, String.format("Using AppThwack account with API Key %s", account.getDisplayName()));
+        }
+        final String apiKey = account.getApiKey();
+        AppThwackProject project = placement.project;
+        List<AppThwackDevicePool> devicePools = placement.devicePools;
+
+        // Copies of the uploaded artifacts being archived on master in the background.
+        final List<Future<?>> archives = Collections.synchronizedList(new ArrayList<Future<?>>());
+
+        // Runs handed off to the completion service release their slots and account once they complete.
+        boolean detachedRuns = false;
+        try {
+            // Find/Validate app artifact.
+            final FilePath appArtifactFile = getArtifact(workspace, env.expand(appArtifact), log);
+            if (appArtifactFile == null) {
+                LOG(log, "Application Artifact not found.");
+                return false;
+            }
+            archiveArtifact(appArtifactFile, artifactsDir, archives, log);
+
+            // Upload app and test content in parallel, finding/hashing the test content overlaps with the app transfer.
+            LOG(log, String.format("Using App '%s'", appArtifactFile.getRemote()));
+            ExecutorService executor = getDescriptor().getExecutor();
+            Future<AppThwackFile> appUpload = executor.submit(new Callable<AppThwackFile>() {
+                public AppThwackFile call() throws InterruptedException {
+                    return uploadFile(appArtifactFile, apiKey, job, log);
+                }
+            });
+            final EnvVars testEnv = env;
+            final FilePath testArtifactsDir = artifactsDir;
+            final FilePath testWorkspace = workspace;
+            Future<AppThwackFile> testsUpload = executor.submit(new Callable<AppThwackFile>() {
+                public AppThwackFile call() throws InterruptedException {
+                    return uploadTestContent(testEnv, testArtifactsDir, testWorkspace, archives, apiKey, job, log);
+                }
+            });
 
-        // Create test run name.
-        String name = String.format("%s (Jenkins)", appArtifactFile.getName());
+            // Wait for app upload.
+            AppThwackFile app = waitForUpload(log, appUpload, testsUpload);
+            if (app == null) {
+                LOG(log, String.format("Failed to upload app '%s'", appArtifactFile.getRemote()));
+                testsUpload.cancel(true);
+                return false;
+            }
 
-        // Schedule the test run.
-        LOG(String.format("Scheduling '%s' run '%s'", type, name));
-        AppThwackRun run = scheduleTestRun(project, devicePool, type, name, app, tests, env);
+            // Wait for test content upload.
+            AppThwackFile tests = waitForUpload(log, testsUpload, appUpload);
+            if (tests == null && requiresTestContent(type)) {
+                LOG(log, String.format("Failed to upload required '%s' test content.", type));
+                return false;
+            }
 
-        // Huzzah!
-        LOG(String.format("Congrats! Run scheduled and available at %s", run.getWebUrl()));
+            // Wait for enough free run slots, on the account and across all jobs.
+            final AppThwackRunSlots accountSlots = account.getRunSlots();
+            if (!acquireRunSlots(accountSlots, runCount, log)) {
+                return false;
+            }
+            final AppThwackRunSlots runSlots = getDescriptor().getRunSlots();
+            boolean acquired = false;
+            try {
+                acquired = acquireRunSlots(runSlots, runCount, log);
+            }
+            finally {
+                if (!acquired) {
+                    releaseRunSlots(accountSlots, runCount);
+                }
+            }
+            if (!acquired) {
+                return false;
+            }
+            try {
+                // Schedule a test run for every device pool and shard in parallel.
+                AppThwackTestResultAction action = new AppThwackTestResultAction(build, log);
+                final List<AppThwackRun> runs = scheduleTestRuns(action, project, devicePools, testFilters, type, appArtifactFile.getName(), app, tests, env, job, log);
+                if (runs == null) {
+                    return false;
+                }
+                if (runs.size() < runCount) {
+                    // Still wait on the runs which were scheduled so they're recorded rather than orphaned.
+                    LOG(log, "Not all test runs could be scheduled, the build fails once the scheduled runs complete.");
+                    build.setResult(Result.FAILURE);
+                }
 
-        // Attach AppThwack action to poll periodically and update results UI.
-        AppThwackTestResultAction action = new AppThwackTestResultAction(build, log);
-        build.addAction(action);
+                // Attach AppThwack action to poll periodically and update results UI.
+                build.addAction(action);
+                AppThwackUtils.recordAppThwackBuild(build);
+
+                // Hand the runs off to the completion service and release the executor.
+                if (detached) {
+                    // The workspace may be reused once we release the executor, finish archiving first.
+                    waitForArchives(archives, log);
+                    // The runs show as scheduled until their first poll, which the completion service retries on failure.
+                    LOG(log, "Releasing executor, results will be recorded once the test runs complete.");
+                    // Jenkins results can only get worse, so the build can't complete with a placeholder result and
+                    // be promoted to SUCCESS later. Make it explicit that nothing downstream waits for the runs.
+                    LOG(log, "NOTE: This build completes with its current result. Downstream jobs, notifications and "
+                            + "the 'last successful build' are NOT gated on the AppThwack results; a failing run only "
+                            + "marks this build as failed afterwards.");
+                    LOG(log, String.format("Progress of the AppThwack runs is logged to %s on the AppThwack results page.",
+                            AppThwackTestResult.DetachedLogFileName));
+                    final AbstractBuild<?, ?> owner = build;
+                    getDescriptor().getCompletionService().watch(runs, action, new AppThwackCompletionService.Callback() {
+                        public void onCompleted(List<AppThwackRun> runs, AppThwackTestResultAction action) {
+                            releaseRunSlots(runSlots, runCount);
+                            releaseRunSlots(accountSlots, runCount);
+                            account.release(runCount);
+                            finalizeDetachedBuild(owner, runs, action, true);
+                        }
+                        public void onTimeout(List<AppThwackRun> runs, AppThwackTestResultAction action) {
+                            releaseRunSlots(runSlots, runCount);
+                            releaseRunSlots(accountSlots, runCount);
+                            account.release(runCount);
+                            finalizeDetachedBuild(owner, runs, action, false);
+                        }
+                    });
+                    detachedRuns = true;
+                    return true;
+                }
 
-        // Wait for test result to complete will updating status periodically.
-        LOG("Waiting for test run to complete.");
-        action.waitForRunCompletion(run);
+                // Wait for all test runs to complete while updating status periodically.
+                LOG(log, String.format("Waiting for %d test run(s) to complete.", runs.size()));
+                if (!getDescriptor().getCompletionService().waitForCompletion(runs, action)) {
+                    LOG(log, "AppThwack runs did not complete in time.");
+                    return false;
+                }
+                waitForArchives(archives, log);
 
-        // Run complete, grab and process the results.
-        AppThwackTestResult result = action.getResult();
-        LOG(String.format("AppThwack run %d completed %d tests", run.id, result.getTotalCount()));
+                return processResults(build, runs, action, log);
+            }
+            finally {
+                if (!detachedRuns) {
+                    releaseRunSlots(runSlots, runCount);
+                    releaseRunSlots(accountSlots, runCount);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            cancelArchives(archives);
+            throw e;
+        }
+        finally {
+            // Never leave copies from the workspace running once this step returns, it may be reused right away.
+            waitForArchives(archives, log);
+            if (!detachedRuns) {
+                account.release(runCount);
+            }
+        }
+    }
 
-        // Create results storage directory which will contain the unzip logs/screenshots pulled from AppThwack.
-        FilePath resultsDir = new FilePath(artifactsDir, String.format("appthwack-results-%d", run.id));
-        resultsDir.mkdirs();
-        LOG(String.format("Storing AppThwack results in directory %s", resultsDir));
+    /**
+     * Project and device pools of a build on one of the accounts it could be placed on.
+     */
+    private static class Placement {
+        private final AppThwackProject project;
+        private final List<AppThwackDevicePool> devicePools;
+        private final List<String> messages;
 
-        // Download results archive and store it.
-        LOG("Downloading AppThwack results archive...");
-        FilePath archive = getResultsArchive(run, artifactsDir);
-        if (archive == null) {
-            LOG("Failed to download results archive!");
-            return false;
+        Placement(AppThwackProject project, List<AppThwackDevicePool> devicePools, List<String> messages) {
+            this.project = project;
+            this.devicePools = devicePools;
+            this.messages = messages;
         }
-        LOG(String.format("Results archive saved in %s", archive.getName()));
+    }
+
+    /**
+     * Process the results of completed AppThwack runs. Download (and optionally extract) the results archive
+     * of each run into the build artifacts directory and set the Jenkins build result based on the combined AppThwack test result.
+     * @param build build which scheduled the AppThwack runs
+     * @param runs completed AppThwack runs
+     * @param action action which holds the final results of the runs
+     * @param log stream to write progress messages to
+     * @return true if the results were processed, false otherwise
+     */
+    private boolean processResults(AbstractBuild<?, ?> build, List<AppThwackRun> runs, AppThwackTestResultAction action, PrintStream log)
+            throws IOException, InterruptedException {
+        // Artifacts location for this build on master.
+        FilePath artifactsDir = new FilePath(build.getArtifactsDir());
 
-        // Extract results archive into results directory.
-        archive.unzip(resultsDir);
-        LOG(String.format("Extracted results archive to directory %s", resultsDir.getName()));
+        for (AppThwackRun run : runs) {
+            // Run complete, grab and process the results.
+            AppThwackTestResult result = action.getRunResult(run.id);
+            LOG(log, String.format("AppThwack run %d completed %d tests", run.id, result.getTotalCount()));
+
+            // Download results archive and store it.
+            LOG(log, "Downloading AppThwack results archive...");
+            throttle(build.getProject().getFullName(), log);
+            FilePath archive = getResultsArchive(run, artifactsDir, log);
+            if (archive == null) {
+                LOG(log, "Failed to download results archive!");
+                return false;
+            }
+            LOG(log, String.format("Results archive saved in %s", archive.getName()));
+
+            // Results are browsed straight from the archive unless the user wants them extracted.
+            if (extractResults) {
+                // Create results storage directory which will contain the unzip logs/screenshots pulled from AppThwack.
+                FilePath resultsDir = new FilePath(artifactsDir, String.format("appthwack-results-%d", run.id));
+                resultsDir.mkdirs();
+                LOG(log, String.format("Storing AppThwack results in directory %s", resultsDir));
+
+                // Extract results archive into results directory.
+                archive.unzip(resultsDir);
+                LOG(log, String.format("Extracted results archive to directory %s", resultsDir.getName()));
+
+                // Everything the archive contains has been extracted, drop it if the user doesn't want to keep it.
+                if (discardResultsArchive) {
+                    archive.delete();
+                    LOG(log, String.format("Discarded results archive %s", archive.getName()));
+                }
+            }
+        }
 
         // Set Jenkins build result based on AppThwack test result.
         build.setResult(action.getBuildResult());
@@ -250,64 +498,374 @@ public class AppThwackRecorder extends Recorder {
         return true;
     }
 
+    /**
+     * Finalize a build which released its executor once its AppThwack runs have completed.
+     * The build itself has already completed and its console log is closed at this point, so progress
+     * is written to a separate log in the build directory and the updated results are saved to the build record.
+     * @param build build which scheduled the AppThwack runs
+     * @param runs completed AppThwack runs
+     * @param action action which holds the final results of the runs
+     * @param completed true if the runs completed, false if one exceeded its deadline
+     */
+    private void finalizeDetachedBuild(AbstractBuild<?, ?> build, List<AppThwackRun> runs, AppThwackTestResultAction action, boolean completed) {
+        PrintStream log = null;
+        try {
+            File logFile = new File(build.getRootDir(), AppThwackTestResult.DetachedLogFileName);
+            log = new PrintStream(new FileOutputStream(logFile, true), true, "UTF-8");
+            if (!completed) {
+                LOG(log, "AppThwack runs did not complete in time.");
+                build.setResult(Result.FAILURE);
+            }
+            else if (!processResults(build, runs, action, log)) {
+                build.setResult(Result.FAILURE);
+            }
+            build.save();
+            AppThwackUtils.recordAppThwackBuild(build);
+        }
+        catch (Exception e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to finalize %s for AppThwack runs", build), e);
+        }
+        finally {
+            if (log != null) {
+                log.close();
+            }
+        }
+    }
+
     /**
      * Return FilePath within Jenkins run directory where the AppThwack results
      * archive is stored.
      * @param run AppThwack run we're downloading the results of
      * @param archiveDir AppThwack archive directory for this run
+     * @param log stream to write progress messages to
      * @return
      */
-    public FilePath getResultsArchive(AppThwackRun run, FilePath archiveDir) {
+    public FilePath getResultsArchive(AppThwackRun run, FilePath archiveDir, PrintStream log) {
+        File download = null;
         try {
             // Download results archive which saves it into a system temp file.
-            FilePath tmpArchive = new FilePath(run.downloadResults());
-            if (tmpArchive == null) {
+            download = run.downloadResults();
+            if (download == null) {
                 return null;
             }
-            // Copy from temp file into our artifact directory, pulling from remote slave if necessary.
-            FilePath localArchive = archiveDir.child(String.format("results-%s.zip", run.id.toString()));
-            tmpArchive.copyTo(localArchive);
-            return localArchive;
+            // Move the temp file into our artifact directory, only copying it when it lives on another file system.
+            File localArchive = new File(archiveDir.getRemote(), String.format("results-%s.zip", run.id.toString()));
+            if (!download.renameTo(localArchive)) {
+                new FilePath(download).copyTo(new FilePath(localArchive));
+            }
+            return new FilePath(localArchive);
         }
         catch (Exception e) {
-            LOG(String.format("Unable to download results archive for run %s. %s", run.toString(), e.toString()));
+            LOG(log, String.format("Unable to download results archive for run %s. %s", run.toString(), e.toString()));
             return null;
         }
+        finally {
+            // Don't leave results archives behind in the system temp directory.
+            if (download != null && download.exists() && !download.delete()) {
+                LOGGER.warning(String.format("Unable to delete temporary results archive %s", download));
+            }
+        }
     }
 
     /**
-     * Gets a local File instance of a glob file pattern, pulling it from a slave if necessary.
-     * @param artifactsDir artifacts directory on master
+     * Gets the FilePath of a glob file pattern within the (potentially remote) workspace.
      * @param workspace workspace to search for matches, usually the jenkins workspace
      * @param pattern Glob pattern to find artifacts
+     * @param log stream to write progress messages to
      * @return
      */
-    public File getArtifactFile(FilePath artifactsDir, FilePath workspace, String pattern) {
+    public FilePath getArtifact(FilePath workspace, String pattern, PrintStream log) {
         try {
             // Find glob matches.
             FilePath[] matches = workspace.list(pattern);
             if (matches == null || matches.length == 0) {
-                LOG(String.format("No Artifacts found using pattern '%s'", pattern));
+                LOG(log, String.format("No Artifacts found using pattern '%s'", pattern));
                 return null;
             }
             // Use the first match if multiple found.
             FilePath artifact = matches[0];
             if (matches.length > 1) {
-                LOG(String.format("WARNING: Multiple artifact matches found, defaulting to '%s'", artifact.getName()));
+                LOG(log, String.format("WARNING: Multiple artifact matches found, defaulting to '%s'", artifact.getName()));
             }
-            LOG(String.format("Archiving artifact '%s'", artifact.getName()));
-
-            // Copy file (master or slave) to the build artifact directory on the master.
-            FilePath localArtifact = new FilePath(artifactsDir, artifact.getName());
-            artifact.copyTo(localArtifact);
-            return new File(localArtifact.toString());
+            return artifact;
         }
         catch (Exception e) {
-            LOG(String.format("Unable to find artifact %s", e.toString()));
+            LOG(log, String.format("Unable to find artifact %s", e.toString()));
+            return null;
+        }
+    }
+
+    /**
+     * Copy the given artifact (master or slave) to the build artifact directory on the master
+     * in the background, unless archiving has been disabled.
+     * @param artifact artifact to archive
+     * @param artifactsDir artifacts directory on master
+     * @param archives list of pending archive copies to add to
+     * @param log stream to write progress messages to
+     */
+    private void archiveArtifact(final FilePath artifact, FilePath artifactsDir, List<Future<?>> archives, final PrintStream log) {
+        if (skipArchive) {
+            return;
+        }
+        LOG(log, String.format("Archiving artifact '%s'", artifact.getName()));
+        final FilePath localArtifact = new FilePath(artifactsDir, artifact.getName());
+        archives.add(getDescriptor().getExecutor().submit(new Callable<Void>() {
+            public Void call() throws IOException, InterruptedException {
+                artifact.copyTo(localArtifact);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Block until the given upload has completed. If we're interrupted while waiting, all given
+     * uploads are cancelled.
+     * @param upload upload to wait for
+     * @param others other uploads of this build to cancel if interrupted
+     * @return object which represents a remote file on AppThwack or null on error
+     */
+    private AppThwackFile waitForUpload(PrintStream log, Future<AppThwackFile> upload, Future<?>... others) throws InterruptedException {
+        try {
+            return upload.get();
+        }
+        catch (InterruptedException e) {
+            upload.cancel(true);
+            for (Future<?> other : others) {
+                other.cancel(true);
+            }
+            throw e;
+        }
+        catch (ExecutionException e) {
+            LOG(log, String.format("Unable to upload file %s", e.getCause().toString()));
             return null;
         }
     }
 
+    /**
+     * Block until all pending archive copies have completed.
+     * @param archives list of pending archive copies
+     * @param log stream to write progress messages to
+     */
+    private void waitForArchives(List<Future<?>> archives, PrintStream log) throws InterruptedException {
+        for (Future<?> archive : new ArrayList<Future<?>>(archives)) {
+            try {
+                archive.get();
+            }
+            catch (ExecutionException e) {
+                LOG(log, String.format("Unable to archive artifact %s", e.getCause().toString()));
+            }
+        }
+        archives.clear();
+    }
+
+    /**
+     * Cancel all pending archive copies, e.g. because the build has been aborted.
+     * @param archives list of pending archive copies
+     */
+    private void cancelArchives(List<Future<?>> archives) {
+        for (Future<?> archive : new ArrayList<Future<?>>(archives)) {
+            archive.cancel(true);
+        }
+        archives.clear();
+    }
+
+    /**
+     * Return the device pools to schedule runs on: the selected device pool followed by all pools of the project
+     * matching the given comma separated list of names or wildcard ('*') patterns.
+     * @param apiKey API key of the account which owns the project
+     * @param project user project which contains the device pools
+     * @param devicePool selected device pool
+     * @param patterns comma separated list of additional device pool names or patterns
+     * @param messages list to add progress messages to, logged once the build is placed on the account
+     * @param log stream to report waits for the AppThwack API to
+     * @return list of device pools or null if a named device pool wasn't found
+     */
+    private List<AppThwackDevicePool> getDevicePools(String apiKey, AppThwackProject project, AppThwackDevicePool devicePool, String patterns,
+            List<String> messages, PrintStream log) throws InterruptedException {
+        List<AppThwackDevicePool> devicePools = new ArrayList<AppThwackDevicePool>();
+        devicePools.add(devicePool);
+        if (patterns == null || patterns.trim().isEmpty()) {
+            return devicePools;
+        }
+        List<AppThwackDevicePool> available = getDescriptor().getDevicePools(apiKey, project.name, log);
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            Pattern regex = Pattern.compile(("\\Q" + pattern + "\\E").replace("*", "\\E.*\\Q"));
+            boolean matched = false;
+            for (AppThwackDevicePool pool : available) {
+                if (!regex.matcher(pool.name).matches()) {
+                    continue;
+                }
+                matched = true;
+                if (!containsDevicePool(devicePools, pool.name)) {
+                    messages.add(String.format("Using additional DevicePool '%s'", pool.name));
+                    devicePools.add(pool);
+                }
+            }
+            if (!matched) {
+                // Patterns may legitimately match nothing, explicit names must exist.
+                if (!pattern.contains("*")) {
+                    messages.add(String.format("DevicePool '%s' not found.", pattern));
+                    return null;
+                }
+                messages.add(String.format("No DevicePools match '%s'", pattern));
+            }
+        }
+        return devicePools;
+    }
+
+    private static boolean containsDevicePool(List<AppThwackDevicePool> devicePools, String name) {
+        for (AppThwackDevicePool pool : devicePools) {
+            if (pool.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the test filter of each run to schedule on a device pool. Unless sharding is enabled this is
+     * the single configured filter, otherwise the TestCase/TestSuite entries of the filter are split into shards
+     * balanced by the durations recorded by previous builds.
+     * @param build build which schedules the runs
+     * @param env Environment variables for the current job.
+     * @param log stream to write progress messages to
+     * @return list of test filters, one per run
+     */
+    private List<String> getTestFilters(AbstractBuild<?, ?> build, EnvVars env, PrintStream log) {
+        String filter = null;
+        if (type.equalsIgnoreCase(JUNIT_TYPE)) {
+            filter = env.expand(junitFilter);
+        }
+        else if (type.equalsIgnoreCase(UIAUTO_TYPE)) {
+            filter = env.expand(uiautoFilter);
+        }
+        int count = (shards != null && isNumeric(shards)) ? Integer.parseInt(shards) : 1;
+        List<String> tests = AppThwackUtils.splitTestFilter(filter);
+        if (count <= 1 || tests.size() <= 1) {
+            if (count > 1) {
+                LOG(log, "Sharding requires a JUnit/UI Automator filter of multiple TestCases/TestSuites, running unsharded.");
+            }
+            return Arrays.asList(filter);
+        }
+
+        Map<String, Float> durations = AppThwackUtils.estimateTestDurations(build, DefaultShardSamples);
+        LOG(log, String.format("Sharding %d tests into %d runs (%d with recorded durations)", tests.size(), count, durations.size()));
+        List<String> filters = new ArrayList<String>();
+        for (List<String> shard : AppThwackUtils.shardTests(tests, durations, count)) {
+            filters.add(join(shard, ","));
+        }
+        return filters;
+    }
+
+    /**
+     * Schedules a test run for each of the given device pools and test filters concurrently and registers them with the given action.
+     * @param action action which holds the results of the runs
+     * @param project user project which will contain the runs
+     * @param devicePools device pools to run tests on
+     * @param testFilters test filter of each shard
+     * @param type type of tests to run
+     * @param appName name of the app under test
+     * @param app object returned from uploading user app
+     * @param tests object returned from uploading user test content
+     * @param job name of the job scheduling the runs
+     * @param log stream to write progress messages to
+     * @return scheduled AppThwack runs, fewer than requested if some failed to be scheduled, or null if none were
+     */
+    private List<AppThwackRun> scheduleTestRuns(AppThwackTestResultAction action,
+            final AppThwackProject project,
+            List<AppThwackDevicePool> devicePools,
+            List<String> testFilters,
+            final String type,
+            String appName,
+            final AppThwackFile app,
+            final AppThwackFile tests,
+            final EnvVars env,
+            final String job,
+            final PrintStream log) throws InterruptedException {
+        List<Future<AppThwackRun>> scheduled = new ArrayList<Future<AppThwackRun>>();
+        List<AppThwackDevicePool> runPools = new ArrayList<AppThwackDevicePool>();
+        List<String> runFilters = new ArrayList<String>();
+        for (final AppThwackDevicePool pool : devicePools) {
+            for (int shard = 0; shard < testFilters.size(); shard++) {
+                final String filter = testFilters.get(shard);
+
+                // Create test run name.
+                List<String> labels = new ArrayList<String>();
+                labels.add("Jenkins");
+                if (devicePools.size() > 1) {
+                    labels.add(pool.name);
+                }
+                if (testFilters.size() > 1) {
+                    labels.add(String.format("shard %d/%d", shard + 1, testFilters.size()));
+                }
+                final String name = String.format("%s (%s)", appName, join(labels, " - "));
+
+                LOG(log, String.format("Scheduling '%s' run '%s'", type, name));
+                scheduled.add(getDescriptor().getExecutor().submit(new Callable<AppThwackRun>() {
+                    public AppThwackRun call() throws InterruptedException {
+                        throttle(job, log);
+                        return scheduleTestRun(project, pool, type, name, app, tests, filter, env, log);
+                    }
+                }));
+                runPools.add(pool);
+                runFilters.add(testFilters.size() > 1 ? filter : null);
+            }
+        }
+
+        // Wait for every run, those which were scheduled must be tracked even if others failed.
+        List<AppThwackRun> runs = new ArrayList<AppThwackRun>();
+        int failed = 0;
+        try {
+            for (int i = 0; i < scheduled.size(); i++) {
+                AppThwackRun run;
+                try {
+                    run = scheduled.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    LOG(log, String.format("Unable to schedule test run %s", e.getCause().toString()));
+                    run = null;
+                }
+                if (run == null) {
+                    failed++;
+                    continue;
+                }
+                // Huzzah!
+                LOG(log, String.format("Congrats! Run scheduled and available at %s", run.getWebUrl()));
+                action.addRun(run, runPools.get(i).name, runFilters.get(i));
+                runs.add(run);
+            }
+        }
+        catch (InterruptedException e) {
+            for (Future<AppThwackRun> future : scheduled) {
+                future.cancel(true);
+            }
+            // Runs which were already scheduled keep running on AppThwack without this build.
+            for (AppThwackRun run : runs) {
+                LOG(log, String.format("Abandoning run %s", run.getWebUrl()));
+            }
+            throw e;
+        }
+        if (failed > 0) {
+            LOG(log, String.format("Failed to schedule %d of %d test runs.", failed, scheduled.size()));
+        }
+        return runs.isEmpty() ? null : runs;
+    }
+
+    private static String join(List<String> values, String separator) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(separator);
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
     /**
      * Schedules a test run on AppThwack.
      * @param project user project which will contain the run
@@ -316,6 +874,8 @@ public class AppThwackRecorder extends Recorder {
      * @param name name of test run
      * @param app object returned from uploading user app
      * @param tests object returned from uploading user test content
+     * @param filter JUnit/UI Automator test filter to run
+     * @param log stream to write progress messages to
      * @return object which represents a remote run on AppThwack
      */
     private AppThwackRun scheduleTestRun(AppThwackProject project,
@@ -324,11 +884,13 @@ public class AppThwackRecorder extends Recorder {
             String name,
             AppThwackFile app,
             AppThwackFile tests,
-            EnvVars env) {
+            String filter,
+            EnvVars env,
+            PrintStream log) {
         try {
             // JUnit/Robotium/Espresso Tests
             if (type.equalsIgnoreCase(JUNIT_TYPE)) {
-                return project.scheduleJUnitRun(app, tests, name, pool, env.expand(junitFilter));
+                return project.scheduleJUnitRun(app, tests, name, pool, filter);
             }
             // Calabash (Android/iOS) Tests
             if (type.equalsIgnoreCase(CALABASH_TYPE)) {
@@ -336,7 +898,7 @@ public class AppThwackRecorder extends Recorder {
             }
             // UI Automator (Android) Tests
             if (type.equalsIgnoreCase(UIAUTO_TYPE)) {
-                return project.scheduleUIAutomatorRun(app, tests, name, pool, env.expand(uiautoFilter));
+                return project.scheduleUIAutomatorRun(app, tests, name, pool, filter);
             }
             // Built-in Android (AppExplorer + ExerciserMonkey)
             if (type.equalsIgnoreCase(BUILTIN_ANDROID_TYPE)) {
@@ -386,89 +948,143 @@ public class AppThwackRecorder extends Recorder {
             return null;
         }
         catch (AppThwackException e) {
-            LOG(String.format("Failed to schedule test run '%s' of type '%s'", name, type));
+            LOG(log, String.format("Failed to schedule test run '%s' of type '%s'", name, type));
             return null;
         }
     }
 
     /**
-     * Uploads newly built app to AppThwack or returns null on error.
-     * @param api AppThwackApi instance to use.
-     * @param apk File object of the app to upload.
+     * Uploads newly built app to AppThwack or returns null on error. Files identical to a
+     * previous upload are not transferred again, the previously uploaded file is reused instead.
+     * @param file FilePath of the app to upload, local or on a slave.
+     * @param log stream to write progress messages to
      * @return Object representing a remote file stored on AppThwack
      */
-    private AppThwackFile uploadFile(AppThwackApi api, File file) {
+    private AppThwackFile uploadFile(FilePath file, String apiKey, String job, PrintStream log) throws InterruptedException {
+        AppThwackUploadCache cache = getDescriptor().getUploadCache();
+        String digest = null;
         try {
-            return api.uploadFile(file);
+            digest = file.act(new AppThwackUploadCache.DigestCallable());
+            AppThwackFile cached = cache.get(apiKey, digest);
+            if (cached != null) {
+                LOG(log, String.format("Reusing previous upload of '%s' (SHA-256 %s)", file.getName(), digest));
+                return cached;
+            }
         }
-        catch (AppThwackException e) {
-            LOG(String.format("Exception '%s' raised when uploading file '%s'", e.getMessage(), file.getAbsolutePath()));
-            return null;
+        catch (IOException e) {
+            LOG(log, String.format("Unable to compute checksum of file '%s'", file.getRemote()));
+        }
+        AppThwackFile upload = uploadFile(file, apiKey, getDescriptor().getRateLimiter(), job, InitialUploadBackoff, log);
+        if (upload != null && digest != null) {
+            cache.put(apiKey, digest, upload);
+        }
+        return upload;
+    }
+
+    /**
+     * Uploads a file to AppThwack or returns null on error. Transient failures (dropped connections,
+     * rate limiting, server errors) are retried with exponential backoff, anything else (missing file,
+     * bad API key, rejected upload) fails right away.
+     * @param file FilePath of the file to upload, local or on a slave.
+     * @param apiKey API key of the account to upload to
+     * @param rateLimiter limits the rate of upload requests
+     * @param job name of the job uploading the file
+     * @param initialBackoff delay (ms) before the first retry, doubled for every further retry
+     * @param log stream to write progress messages to
+     * @return Object representing a remote file stored on AppThwack
+     */
+    static AppThwackFile uploadFile(FilePath file, String apiKey, AppThwackRateLimiter rateLimiter, String job, long initialBackoff, PrintStream log)
+            throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                long waited = rateLimiter.acquire(job);
+                if (waited > 0) {
+                    LOG(log, String.format("Waited %d ms for the AppThwack API rate limit", waited));
+                }
+                // Upload from the node which holds the file.
+                AppThwackFile upload = AppThwackUploadCallable.toFile(file.act(new AppThwackUploadCallable(apiKey)));
+                if (upload != null) {
+                    return upload;
+                }
+                throw new AppThwackUploadCallable.UploadException("No file returned by AppThwack", true);
+            }
+            catch (IOException e) {
+                // Anything but a classified upload failure means the connection to the slave which holds the file was lost.
+                boolean permanent = (e instanceof AppThwackUploadCallable.UploadException)
+                        && !((AppThwackUploadCallable.UploadException) e).isTransient();
+                if (permanent || attempt >= MaxUploadAttempts) {
+                    LOG(log, String.format("Exception '%s' raised when uploading file '%s'", e.getMessage(), file.getRemote()));
+                    return null;
+                }
+                LOG(log, String.format("Upload attempt %d of '%s' failed (%s)", attempt, file.getName(), e.getMessage()));
+            }
+            // Back off exponentially before trying again.
+            long backoff = Math.min(initialBackoff << (attempt - 1), MaxUploadBackoff);
+            LOG(log, String.format("Retrying upload of '%s' in %d ms", file.getName(), backoff));
+            Thread.sleep(backoff);
         }
     }
 
     /**
      * Upload JUnit/Robotium/Espresso test app or Calabash scripts to AppThwack.
-     * @param api AppThwackApi instance to use.
      * @param env Environment variables for the current job.
      * @param artifactsDir artifacts path on master for this build
      * @param workspace path to local/remote workspace for this build
+     * @param archives list of pending archive copies to add to
+     * @param log stream to write progress messages to
      * @return object which represents a remote file on AppThwack.
      */
-    private AppThwackFile uploadTestContent(AppThwackApi api, EnvVars env, FilePath artifactsDir, FilePath workspace) {
-        File tests = null;
+    private AppThwackFile uploadTestContent(EnvVars env, FilePath artifactsDir, FilePath workspace, List<Future<?>> archives, String apiKey, String job, PrintStream log)
+            throws InterruptedException {
+        FilePath tests = null;
 
         // JUnit/Robotium/Espresso: Upload tests .apk file.
         if (type.equalsIgnoreCase(JUNIT_TYPE)) {
             // Get JUnit/Robotium apk from given glob pattern.
-            tests = getArtifactFile(artifactsDir, workspace, env.expand(junitArtifact));
+            tests = getArtifact(workspace, env.expand(junitArtifact), log);
         }
         // Calabash: Upload features.zip file.
         else if (type.equalsIgnoreCase(CALABASH_TYPE)) {
             // Get Calabash features.zip from given glob pattern.
-            tests = getArtifactFile(artifactsDir, workspace, env.expand(calabashFeatures));
+            tests = getArtifact(workspace, env.expand(calabashFeatures), log);
         }
         // MonkeyTalk: Upload tests .zip file.
         else if (type.equalsIgnoreCase(MONKEYTALK_TYPE)) {
             // Get MonkeyTalk tests (.zip) from given glob pattern.
-            tests = getArtifactFile(artifactsDir, workspace, env.expand(monkeyArtifact));
+            tests = getArtifact(workspace, env.expand(monkeyArtifact), log);
         }
         else if (type.equalsIgnoreCase(UIAUTO_TYPE)) {
             // Get UI Automator tests (.jar) from given glob pattern.
-            tests = getArtifactFile(artifactsDir, workspace, env.expand(uiautoArtifact));
+            tests = getArtifact(workspace, env.expand(uiautoArtifact), log);
         }
         // UIA: Upload tests .js file.
         else if (type.equalsIgnoreCase(UIA_TYPE)) {
             // Get UIA .js file from given glob pattern.
-            tests = getArtifactFile(artifactsDir, workspace, env.expand(uiaArtifact));
+            tests = getArtifact(workspace, env.expand(uiaArtifact), log);
         }
         // OCUnit: Upload tests .zip file.
         else if (type.equalsIgnoreCase(OCUNIT_TYPE)) {
             // Get OCUnit .zip file from given glob pattern.
-            tests = getArtifactFile(artifactsDir, workspace, env.expand(ocunitArtifact));
+            tests = getArtifact(workspace, env.expand(ocunitArtifact), log);
         }
         // XCTest: Upload tests .zip file.
         else if (type.equalsIgnoreCase(XCTEST_TYPE)) {
             // Get XCTest .zip file from given glob pattern.
-            tests = getArtifactFile(artifactsDir, workspace, env.expand(xctestArtifact));
+            tests = getArtifact(workspace, env.expand(xctestArtifact), log);
         }
 
         // Test type has no explicit test artifacts or failed to find them.
         if (tests == null) {
             return null;
         }
-        // Provided valid path but no file exists there.
-        if (!tests.exists()) {
-            LOG(String.format("No test content found at '%s'", tests.getAbsolutePath()));
-            return null;
-        }
+        archiveArtifact(tests, artifactsDir, archives, log);
 
-        LOG(String.format("Using '%s' test content from '%s'", type, tests.getAbsolutePath()));
+        LOG(log, String.format("Using '%s' test content from '%s'", type, tests.getRemote()));
 
         // Upload test artifacts to AppThwack.
-        AppThwackFile upload = uploadFile(api, tests);
+        AppThwackFile upload = uploadFile(tests, apiKey, job, log);
         if (upload == null) {
-            LOG(String.format("Failed to upload test content '%s'", tests.getAbsolutePath()));
+            LOG(log, String.format("Failed to upload test content '%s'", tests.getRemote()));
             return null;
         }
         return upload;
@@ -476,33 +1092,38 @@ public class AppThwackRecorder extends Recorder {
 
     /**
      * Validate top level configuration values.
+     * @param log stream to write progress messages to
      * @return
      */
-    private boolean validateConfiguration() {
+    private boolean validateConfiguration(PrintStream log) {
         // [Required]: API Key
-        String apiKey = getApiKey();
-        if (apiKey == null || apiKey.isEmpty()) {
-            LOG("API Key must be set.");
+        if (getDescriptor().getAccounts().isEmpty()) {
+            LOG(log, "API Key must be set.");
             return false;
         }
         // [Required]: Project
         if (projectName == null || projectName.isEmpty()) {
-            LOG("Project must be set.");
+            LOG(log, "Project must be set.");
             return false;
         }
         // [Required]: DevicePool
         if (devicePoolName == null || devicePoolName.isEmpty()) {
-            LOG("DevicePool must be set.");
+            LOG(log, "DevicePool must be set.");
             return false;
         }
         // [Required]: App Artifact
         if (appArtifact == null || appArtifact.isEmpty()) {
-            LOG("Application Artifact must be set.");
+            LOG(log, "Application Artifact must be set.");
+            return false;
+        }
+        // [Optional]: Shards (int)
+        if (shards != null && !shards.isEmpty() && !isNumeric(shards)) {
+            LOG(log, "Shards must be a number.");
             return false;
         }
         // [Required]: Type (Radio Block)
         if (type == null || type.isEmpty()) {
-            LOG("Test type must be set.");
+            LOG(log, "Test type must be set.");
             return false;
         }
         return true;
@@ -510,14 +1131,15 @@ public class AppThwackRecorder extends Recorder {
 
     /**
      * Validate user selected test type and additional configuration values.
+     * @param log stream to write progress messages to
      * @return
      */
-    private boolean validateTestConfiguration() {
+    private boolean validateTestConfiguration(PrintStream log) {
         // JUnit/Robotium
         if (type.equalsIgnoreCase(JUNIT_TYPE)) {
             // [Required]: Tests Artifact
             if (junitArtifact == null || junitArtifact.isEmpty()) {
-                LOG("JUnit tests Artifact must be set.");
+                LOG(log, "JUnit tests Artifact must be set.");
                 return false;
             }
             return true;
@@ -526,12 +1148,12 @@ public class AppThwackRecorder extends Recorder {
         else if (type.equalsIgnoreCase(CALABASH_TYPE)) {
             // [Required]: Features Path
             if (calabashFeatures == null || calabashFeatures.isEmpty()) {
-                LOG("Calabash Features must be set.");
+                LOG(log, "Calabash Features must be set.");
                 return false;
             }
             // [Required]: Features.zip
             if (!calabashFeatures.endsWith(".zip")) {
-                LOG("Calabash content must be of type .zip");
+                LOG(log, "Calabash content must be of type .zip");
                 return false;
             }
             return true;
@@ -541,14 +1163,14 @@ public class AppThwackRecorder extends Recorder {
             // [Optional]: EventCount (int)
             if (eventcount != null && !eventcount.isEmpty()) {
                 if (!isNumeric(eventcount)) {
-                    LOG("EventCount must be a number.");
+                    LOG(log, "EventCount must be a number.");
                     return false;
                 }
             }
             // [Optional]: MonkeySeed (int)
             if (monkeyseed != null && !monkeyseed.isEmpty()) {
                 if (!isNumeric(monkeyseed)) {
-                    LOG("MonkeySeed must be a number.");
+                    LOG(log, "MonkeySeed must be a number.");
                     return false;
                 }
             }
@@ -557,7 +1179,7 @@ public class AppThwackRecorder extends Recorder {
         // MonkeyTalk
         else if (type.equalsIgnoreCase(MONKEYTALK_TYPE)) {
             if (monkeyArtifact == null || monkeyArtifact.isEmpty()) {
-                LOG("MonkeyTalk tests artifact must be set.");
+                LOG(log, "MonkeyTalk tests artifact must be set.");
                 return false;
             }
             return true;
@@ -565,7 +1187,7 @@ public class AppThwackRecorder extends Recorder {
         // UI Automator
         else if (type.equalsIgnoreCase(UIAUTO_TYPE)) {
             if (uiautoArtifact == null || uiautoArtifact.isEmpty()) {
-                LOG("UI Automator tests artifact must be set.");
+                LOG(log, "UI Automator tests artifact must be set.");
                 return false;
             }
             return true;
@@ -574,7 +1196,7 @@ public class AppThwackRecorder extends Recorder {
         else if (type.equalsIgnoreCase(UIA_TYPE)) {
             // [Required]: Tests Artifact
             if (uiaArtifact == null || uiaArtifact.isEmpty()) {
-                LOG("UIA tests artifact is empty.");
+                LOG(log, "UIA tests artifact is empty.");
                 return false;
             }
             return true;
@@ -582,7 +1204,7 @@ public class AppThwackRecorder extends Recorder {
         // OCUnit
         else if (type.equalsIgnoreCase(OCUNIT_TYPE)) {
             if (ocunitArtifact == null || ocunitArtifact.isEmpty()) {
-                LOG("OCUnit tests artifact must be set.");
+                LOG(log, "OCUnit tests artifact must be set.");
                 return false;
             }
             return true;
@@ -590,7 +1212,7 @@ public class AppThwackRecorder extends Recorder {
         // XC Test
         else if (type.equalsIgnoreCase(XCTEST_TYPE)) {
             if (xctestArtifact == null || xctestArtifact.isEmpty()) {
-                LOG("XCTest tests artifact must be set.");
+                LOG(log, "XCTest tests artifact must be set.");
                 return false;
             }
             return true;
@@ -606,7 +1228,7 @@ public class AppThwackRecorder extends Recorder {
             return true;
         }
         // Unknown
-        LOG(String.format("Invalid test type %s", type));
+        LOG(log, String.format("Invalid test type %s", type));
         return false;
     }
 
@@ -635,11 +1257,55 @@ public class AppThwackRecorder extends Recorder {
         }
     }
 
+    /**
+     * Block until the global rate limit allows another AppThwack API request of the given job.
+     * @param job name of the job making the request
+     * @param log stream to report the wait to
+     * @throws InterruptedException
+     */
+    private void throttle(String job, PrintStream log) throws InterruptedException {
+        long waited = getDescriptor().getRateLimiter().acquire(job);
+        if (waited > 0) {
+            LOG(log, String.format("Waited %d ms for the AppThwack API rate limit", waited));
+        }
+    }
+
+    /**
+     * Block until slots for the given number of runs are free.
+     * @param runSlots slots to take, null if unlimited
+     * @param runs number of runs to schedule
+     * @param log stream to report the wait to
+     * @return true if the slots were taken, false if the runs can never fit
+     * @throws InterruptedException
+     */
+    private static boolean acquireRunSlots(AppThwackRunSlots runSlots, int runs, PrintStream log) throws InterruptedException {
+        if (runSlots == null || runSlots.tryAcquire(runs)) {
+            return true;
+        }
+        LOG(log, String.format("Waiting for %d free AppThwack run slot(s), %d of %d in use",
+                runs, runSlots.getUsed(), runSlots.getCapacity()));
+        long start = System.currentTimeMillis();
+        if (!runSlots.acquire(runs)) {
+            LOG(log, String.format("This build schedules %d AppThwack runs but only %d may run concurrently, "
+                    + "use fewer device pools or shards.", runs, runSlots.getCapacity()));
+            return false;
+        }
+        LOG(log, String.format("Acquired %d AppThwack run slot(s) after %d seconds", runs, (System.currentTimeMillis() - start) / 1000));
+        return true;
+    }
+
+    private static void releaseRunSlots(AppThwackRunSlots runSlots, int permits) {
+        if (runSlots != null) {
+            runSlots.release(permits);
+        }
+    }
+
     /**
      * Helper method for writing entries to the Jenkins log.
+     * @param log stream of the build being performed
      * @param msg
      */
-    private void LOG(String msg) {
+    private static void LOG(PrintStream log, String msg) {
         log.println(String.format("[AppThwack] %s", msg));
     }
 
@@ -676,12 +1342,13 @@ public class AppThwackRecorder extends Recorder {
     }
 
     /**
-     * In a concurrent environment, this MUST run after the has completed.
+     * Concurrent builds of a job don't wait on each other's AppThwack step; state shared by the builds
+     * (uploads, run slots, accounts, build index and metrics) is safe to use concurrently.
      * @return
      */
     @Override
     public BuildStepMonitor getRequiredMonitorService() {
-        return BuildStepMonitor.BUILD;
+        return BuildStepMonitor.NONE;
     }
 
     /**
@@ -693,23 +1360,135 @@ public class AppThwackRecorder extends Recorder {
     public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
 
         public String apiKey;
-
-        private Map<String, AppThwackProject> projectsCache = new HashMap<String, AppThwackProject>();
-        private Map<String, List<AppThwackDevicePool>> poolsCache = new HashMap<String, List<AppThwackDevicePool>>();
+        public String additionalApiKeys;
+        public int trendGraphSize;
+        public int projectTrendGraphSize;
+        public int apiRequestsPerMinute;
+        public int maxConcurrentRuns;
+
+        private transient AppThwackCache<String, Map<String, AppThwackProject>> projectsCache;
+        private transient AppThwackCache<List<String>, List<AppThwackDevicePool>> poolsCache;
+
+        private transient AppThwackCompletionService completionService;
+        private transient AppThwackUploadCache uploadCache;
+        private transient ExecutorService executor;
+        private transient AppThwackRateLimiter rateLimiter;
+        private transient AppThwackRunSlots runSlots;
+        private transient AppThwackAccounts accounts;
 
         public DescriptorImpl() {
             load();
         }
 
         /**
-         * Return configured instance of the AppThwackApi using API Key from global configuration.
+         * Return the shared service which watches runs of builds that released their executor.
          * @return
          */
-        public AppThwackApi getAppThwackApi() {
-            if (apiKey == null || apiKey.isEmpty()) {
+        public synchronized AppThwackCompletionService getCompletionService() {
+            if (completionService == null) {
+                completionService = new AppThwackCompletionService(getRateLimiter());
+            }
+            return completionService;
+        }
+
+        /**
+         * Return the persistent cache of files previously uploaded to AppThwack.
+         * @return
+         */
+        public synchronized AppThwackUploadCache getUploadCache() {
+            if (uploadCache == null) {
+                uploadCache = AppThwackUploadCache.load(new File(Jenkins.getInstance().getRootDir(), "appthwack-uploads.xml"));
+            }
+            return uploadCache;
+        }
+
+        /**
+         * Return the executor which uploads artifacts, archives them on master, schedules runs and refreshes cached
+         * lookups in the background. Its threads are bounded, further tasks queue until one is free, and idle threads
+         * go away. Only builds wait on its tasks, so queued tasks can't hold up the tasks in front of them.
+         * @return
+         */
+        public synchronized ExecutorService getExecutor() {
+            if (executor == null) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(ExecutorPoolSize, ExecutorPoolSize,
+                        ExecutorKeepAlive, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new AppThwackCompletionService.NamedThreadFactory("AppThwack worker"));
+                pool.allowCoreThreadTimeOut(true);
+                executor = pool;
+            }
+            return executor;
+        }
+
+        /**
+         * Return the pool of AppThwack accounts builds are placed on.
+         * @return
+         */
+        public synchronized AppThwackAccounts getAccounts() {
+            if (accounts == null) {
+                accounts = new AppThwackAccounts(apiKey, additionalApiKeys);
+            }
+            return accounts;
+        }
+
+        /**
+         * Return the limiter shared by all AppThwack API requests of the plugin.
+         * @return
+         */
+        public synchronized AppThwackRateLimiter getRateLimiter() {
+            if (rateLimiter == null) {
+                rateLimiter = new AppThwackRateLimiter(getApiRequestsPerMinute());
+            }
+            return rateLimiter;
+        }
+
+        /**
+         * Return the slots limiting the number of concurrent AppThwack runs or null if unlimited.
+         * @return
+         */
+        public synchronized AppThwackRunSlots getRunSlots() {
+            if (maxConcurrentRuns <= 0) {
                 return null;
             }
-            return new AppThwackApi(apiKey);
+            // Resize rather than replace the slots, builds holding slots hand them back to the same instance.
+            if (runSlots == null) {
+                runSlots = new AppThwackRunSlots(maxConcurrentRuns);
+            }
+            else if (runSlots.getCapacity() != maxConcurrentRuns) {
+                runSlots.setCapacity(maxConcurrentRuns);
+            }
+            return runSlots;
+        }
+
+        /**
+         * Return the maximum rate of AppThwack API requests.
+         * @return
+         */
+        public int getApiRequestsPerMinute() {
+            return (apiRequestsPerMinute > 0) ? apiRequestsPerMinute : DefaultApiRequestsPerMinute;
+        }
+
+        /**
+         * Return the number of results shown by the trend graphs of a build.
+         * @return
+         */
+        public int getTrendGraphSize() {
+            return (trendGraphSize > 0) ? trendGraphSize : AppThwackTestResult.DefaultTrendGraphSize;
+        }
+
+        /**
+         * Return the number of results shown by the trend graph of a project.
+         * @return
+         */
+        public int getProjectTrendGraphSize() {
+            return (projectTrendGraphSize > 0) ? projectTrendGraphSize : AppThwackProjectAction.DefaultProjectTrendGraphSize;
+        }
+
+        /**
+         * Return configured instance of the AppThwackApi using API Key from global configuration.
+         * @return
+         */
+        public AppThwackApi getAppThwackApi() {
+            return AppThwackClients.get(apiKey);
         }
 
         /**
@@ -724,6 +1503,24 @@ public class AppThwackRecorder extends Recorder {
             return FormValidation.ok();
         }
         
+        /**
+         * Validate the additional API keys, one per line with an optional maximum number of concurrent runs.
+         * @param additionalApiKeys
+         * @return
+         */
+        public FormValidation doCheckAdditionalApiKeys(@QueryParameter String additionalApiKeys) {
+            if (additionalApiKeys == null) {
+                return FormValidation.ok();
+            }
+            for (String line : additionalApiKeys.split("\n")) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length > 2 || (fields.length == 2 && !fields[1].matches("\\d+"))) {
+                    return FormValidation.error(String.format("Expected '<API Key> [max concurrent runs]', got '%s'", line.trim()));
+                }
+            }
+            return FormValidation.ok();
+        }
+
     	/**
     	 * Validate the user selected project.
     	 * @param projectName
@@ -859,8 +1656,8 @@ public class AppThwackRecorder extends Recorder {
                 return FormValidation.error("AppThwack API Key must be set!");
             }
             // Clear local caches
-            projectsCache.clear();
-            poolsCache.clear();
+            getProjectsCache().invalidateAll();
+            getPoolsCache().invalidateAll();
             return FormValidation.ok();
         }
 
@@ -871,7 +1668,13 @@ public class AppThwackRecorder extends Recorder {
         public ListBoxModel doFillProjectNameItems(@QueryParameter String projectName) {
             // Create ListBoxModel from all projects for this AppThwack account.
             List<ListBoxModel.Option> entries = new ArrayList<ListBoxModel.Option>();
-            Map<String, AppThwackProject> projects = getAppThwackProjects();
+            Map<String, AppThwackProject> projects = null;
+            try {
+                projects = getProjects(apiKey, null);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
             if (projects == null) {
                 return new ListBoxModel();
             }
@@ -890,7 +1693,13 @@ public class AppThwackRecorder extends Recorder {
          */
         public ListBoxModel doFillDevicePoolNameItems(@QueryParameter String projectName, @QueryParameter String devicePoolName) {
             List<ListBoxModel.Option> entries = new ArrayList<ListBoxModel.Option>();
-            List<AppThwackDevicePool> devicePools = getAppThwackDevicePools(projectName);
+            List<AppThwackDevicePool> devicePools = null;
+            try {
+                devicePools = getDevicePools(apiKey, projectName, null);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
             if (devicePools == null) {
                 return new ListBoxModel();
             }
@@ -901,47 +1710,130 @@ public class AppThwackRecorder extends Recorder {
         }
 
         /**
-         * Get all projects for the AppThwack account tied to the API Key
-         * and store them in a local cache.
+         * Get all projects of the AppThwack account tied to the given API Key, by name.
+         * @param apiKey
+         * @param log stream of the build to report waits for the AppThwack API to, null if there is none
          * @return
+         * @throws InterruptedException
          */
-        private synchronized Map<String, AppThwackProject> getAppThwackProjects() {
-            if (!projectsCache.isEmpty()) {
-                return projectsCache;
-            }
-            AppThwackApi api = getAppThwackApi();
-            if (api == null) {
+        public Map<String, AppThwackProject> getProjects(String apiKey, PrintStream log) throws InterruptedException {
+            if (apiKey == null || apiKey.isEmpty()) {
                 return null;
             }
-            List<AppThwackProject> projects = api.getProjects();
-            for (AppThwackProject project : projects) {
-                projectsCache.put(project.name.toString(), project);
+            return getProjectsCache().get(apiKey, log);
+        }
+
+        /**
+         * Get the project with the given name of the AppThwack account tied to the given API Key.
+         * Projects missing from the cache are looked up again in case they were created since, at most once per minute.
+         * @param apiKey
+         * @param projectName
+         * @param log stream of the build to report waits for the AppThwack API to, null if there is none
+         * @return
+         * @throws InterruptedException
+         */
+        public AppThwackProject getProject(String apiKey, String projectName, PrintStream log) throws InterruptedException {
+            Map<String, AppThwackProject> projects = getProjects(apiKey, log);
+            if (projects != null && projects.containsKey(projectName)) {
+                return projects.get(projectName);
             }
-            return projectsCache;
+            projects = getProjectsCache().refresh(apiKey, log);
+            return (projects != null) ? projects.get(projectName) : null;
+        }
+
+        /**
+         * Get all device pools of the given project of the AppThwack account tied to the given API Key.
+         * @param apiKey
+         * @param projectName
+         * @param log stream of the build to report waits for the AppThwack API to, null if there is none
+         * @return
+         * @throws InterruptedException
+         */
+        public List<AppThwackDevicePool> getDevicePools(String apiKey, String projectName, PrintStream log) throws InterruptedException {
+            if (apiKey == null || apiKey.isEmpty()) {
+                return null;
+            }
+            return getPoolsCache().get(Arrays.asList(apiKey, projectName), log);
         }
 
         /**
-         * Get all device pools for the selected project and store them
-         * in a local cache.
-         * @param project
+         * Get the device pool with the given name of the given project. Device pools missing from the cache
+         * are looked up again in case they were created since, at most once per minute.
+         * @param apiKey
+         * @param projectName
+         * @param devicePoolName
+         * @param log stream of the build to report waits for the AppThwack API to, null if there is none
          * @return
+         * @throws InterruptedException
          */
-        private List<AppThwackDevicePool> getAppThwackDevicePools(String project) {
-            List<AppThwackDevicePool> pools = poolsCache.get(project);
+        public AppThwackDevicePool getDevicePool(String apiKey, String projectName, String devicePoolName, PrintStream log)
+                throws InterruptedException {
+            AppThwackDevicePool pool = findDevicePool(getDevicePools(apiKey, projectName, log), devicePoolName);
+            if (pool == null && apiKey != null && !apiKey.isEmpty()) {
+                pool = findDevicePool(getPoolsCache().refresh(Arrays.asList(apiKey, projectName), log), devicePoolName);
+            }
+            return pool;
+        }
+
+        /**
+         * Block until the global rate limit allows another project or device pool lookup.
+         * @param log stream of the build to report the wait to, null if there is none
+         * @throws InterruptedException
+         */
+        private void throttleLookup(PrintStream log) throws InterruptedException {
+            long waited = getRateLimiter().acquire(LookupJob);
+            if (waited > 0 && log != null) {
+                LOG(log, String.format("Waited %d ms for the AppThwack API rate limit to look up projects and device pools", waited));
+            }
+        }
+
+        private static AppThwackDevicePool findDevicePool(List<AppThwackDevicePool> pools, String name) {
             if (pools != null) {
-                return pools;
+                for (AppThwackDevicePool pool : pools) {
+                    if (pool.name.equals(name)) {
+                        return pool;
+                    }
+                }
             }
-            Map<String, AppThwackProject> projects = getAppThwackProjects();
-            if (projects == null) {
-                return null;
+            return null;
+        }
+
+        private synchronized AppThwackCache<String, Map<String, AppThwackProject>> getProjectsCache() {
+            if (projectsCache == null) {
+                projectsCache = new AppThwackCache<String, Map<String, AppThwackProject>>(
+                        new AppThwackCache.Loader<String, Map<String, AppThwackProject>>() {
+                            public Map<String, AppThwackProject> load(String apiKey, PrintStream log) throws InterruptedException {
+                                throttleLookup(log);
+                                List<AppThwackProject> projects = AppThwackClients.get(apiKey).getProjects();
+                                if (projects == null) {
+                                    return null;
+                                }
+                                Map<String, AppThwackProject> byName = new HashMap<String, AppThwackProject>();
+                                for (AppThwackProject project : projects) {
+                                    byName.put(project.name.toString(), project);
+                                }
+                                return byName;
+                            }
+                        }, getExecutor(), DefaultCacheTtl, MaxCacheStaleness, NegativeCacheTtl);
             }
-            AppThwackProject p = projects.get(project);
-            if (p == null) {
-                return null;
+            return projectsCache;
+        }
+
+        private synchronized AppThwackCache<List<String>, List<AppThwackDevicePool>> getPoolsCache() {
+            if (poolsCache == null) {
+                poolsCache = new AppThwackCache<List<String>, List<AppThwackDevicePool>>(
+                        new AppThwackCache.Loader<List<String>, List<AppThwackDevicePool>>() {
+                            public List<AppThwackDevicePool> load(List<String> key, PrintStream log) throws InterruptedException {
+                                AppThwackProject project = getProject(key.get(0), key.get(1), log);
+                                if (project == null) {
+                                    return null;
+                                }
+                                throttleLookup(log);
+                                return project.getDevicePools();
+                            }
+                        }, getExecutor(), DefaultCacheTtl, MaxCacheStaleness, NegativeCacheTtl);
             }
-            pools = p.getDevicePools();
-            poolsCache.put(project, pools);
-            return pools;
+            return poolsCache;
         }
 
         /**
@@ -953,6 +1845,14 @@ public class AppThwackRecorder extends Recorder {
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) {
             req.bindJSON(this, json);
+            synchronized (this) {
+                // Accounts which are still configured keep the runs placed on them and the slots builds hold.
+                accounts = new AppThwackAccounts(apiKey, additionalApiKeys, accounts);
+            }
+            AppThwackClients.retain(getAccounts().getApiKeys());
+            getProjectsCache().invalidateAll();
+            getPoolsCache().invalidateAll();
+            getRateLimiter().setRate(getApiRequestsPerMinute());
             save();
             return true;
         }
@@ -0,0 +1,32 @@
+package org.jenkinsci.plugins.appthwack;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Keeps the {@link AppThwackBuildIndex} and {@link AppThwackMetricsStore} of each project in sync with its builds.
+ *
+ */
+@Extension
+public class AppThwackRunListener extends RunListener<AbstractBuild> {
+
+    public AppThwackRunListener() {
+        super(AbstractBuild.class);
+    }
+
+    @Override
+    public void onCompleted(AbstractBuild build, TaskListener listener) {
+        if (build.getAction(AppThwackTestResultAction.class) != null) {
+            AppThwackUtils.recordAppThwackBuild(build);
+        }
+    }
+
+    @Override
+    public void onDeleted(AbstractBuild build) {
+        if (build.getAction(AppThwackTestResultAction.class) != null) {
+            AppThwackUtils.forgetAppThwackBuild(build);
+        }
+    }
+}
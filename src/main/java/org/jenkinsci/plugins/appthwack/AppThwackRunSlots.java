@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of AppThwack runs in flight across all jobs.
+ *
+ * Builds take one slot per run before scheduling and hand them back once their runs complete.
+ * Slots are handed out in arrival order so a burst of builds is served first come, first served.
+ * The capacity can be changed while builds hold slots; builds keep what they took and new
+ * slots are only handed out once the runs in flight fit the new capacity.
+ *
+ */
+public class AppThwackRunSlots {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Deque<Object> waiting = new ArrayDeque<Object>();
+
+    private int capacity;
+    private int used;
+
+    /**
+     * @param capacity maximum number of concurrent runs
+     */
+    public AppThwackRunSlots(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        lock.lock();
+        try {
+            return capacity;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Change the maximum number of concurrent runs, e.g. once the global configuration changed.
+     * @param capacity
+     */
+    public void setCapacity(int capacity) {
+        lock.lock();
+        try {
+            this.capacity = capacity;
+            released.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of slots taken by running builds.
+     * @return
+     */
+    public int getUsed() {
+        lock.lock();
+        try {
+            return used;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the given number of slots if they are free right away and no other build is waiting.
+     * @param permits
+     * @return
+     */
+    public boolean tryAcquire(int permits) {
+        lock.lock();
+        try {
+            if (!waiting.isEmpty() || used + permits > capacity) {
+                return false;
+            }
+            used += permits;
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until the given number of slots are free. Builds which need more slots than there are
+     * would wait forever, they are turned away instead.
+     * @param permits
+     * @return true if the slots were taken, false if there are fewer slots than requested
+     * @throws InterruptedException
+     */
+    public boolean acquire(int permits) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Object waiter = new Object();
+            waiting.add(waiter);
+            try {
+                while (permits <= capacity && (waiting.peek() != waiter || used + permits > capacity)) {
+                    released.await();
+                }
+                if (permits > capacity) {
+                    return false;
+                }
+                used += permits;
+                return true;
+            }
+            finally {
+                // Let the next build in line check whether its slots are free.
+                waiting.remove(waiter);
+                released.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(int permits) {
+        if (permits <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            used -= permits;
+            released.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
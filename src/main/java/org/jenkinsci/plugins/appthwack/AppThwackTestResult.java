@@ -2,11 +2,15 @@ package org.jenkinsci.plugins.appthwack;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Collections;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
 
+import hudson.Util;
 import hudson.model.Action;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
@@ -16,6 +20,9 @@ import hudson.tasks.test.TestResult;
 import hudson.tasks.test.TestObject;
 import hudson.util.ChartUtil;
 import hudson.util.Graph;
+import jenkins.model.Jenkins;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -36,7 +43,9 @@ import com.appthwack.appthwack.*;
 public class AppThwackTestResult extends TestResult {
 
     private static final HashMap<String, Result> resultMap = new HashMap<String, Result>();
-    private static final int DefaultTrendGraphSize = 3;
+    static final int DefaultTrendGraphSize = 3;
+    static final String DetachedLogFileName = "appthwack-detached.log";
+    private static final List<String> resultSeverity = Arrays.asList("pass", "warning", "fail", "error");
 
     private int id;
     private int passCount;
@@ -51,20 +60,43 @@ public class AppThwackTestResult extends TestResult {
     private String reportFile;
     private String project;
 
+    // Performance stats, NaN if AppThwack didn't report them.
+    private float cpu = Float.NaN;
+    private float memory = Float.NaN;
+    private float threads = Float.NaN;
+    private float drawTime = Float.NaN;
+    private float fps = Float.NaN;
+
+    // Only set for builds recorded before performance stats were parsed up front.
     private String cpuAvg;
     private String memAvg;
     private String threadAvg;
     private String drawAvg;
     private String fpsAvg;
 
+    // Only set for builds recorded before device results were moved to AppThwackDeviceResults.
     private List<AppThwackResult.ResultContainer> passByDevice;
     private List<AppThwackResult.ResultContainer> warnByDevice;
     private List<AppThwackResult.ResultContainer> failByDevice;
 
+    private String devicePool;
+    private String testFilter;
+    private List<AppThwackTestResult> runs;
+
     private AbstractBuild<?, ?> build;
 
+    private transient AppThwackArchiveBrowser archiveBrowser;
+    private transient SoftReference<AppThwackDeviceResults> deviceResults;
+    private transient AppThwackDeviceResults unsavedDeviceResults;
+
     public AppThwackTestResult(AbstractBuild<?, ?> build, AppThwackRun run, AppThwackResult result) {
+        this(build, run, result, null, null);
+    }
+
+    public AppThwackTestResult(AbstractBuild<?, ?> build, AppThwackRun run, AppThwackResult result, String devicePool, String testFilter) {
         this.build = build;
+        this.devicePool = devicePool;
+        this.testFilter = testFilter;
         if (result != null) {
             this.id = result.summary.id;
             this.status = result.summary.status;
@@ -75,33 +107,134 @@ public class AppThwackTestResult extends TestResult {
             this.failCount = result.summary.failures;
             this.totalCount = result.summary.count;
             this.reportFile = result.summary.reportFile;
-            this.passByDevice = result.passesByDevice;
-            this.warnByDevice = result.warningsByDevice;
-            this.failByDevice = result.failuresByDevice;
+            this.unsavedDeviceResults = new AppThwackDeviceResults(
+                    result.passesByDevice, result.warningsByDevice, result.failuresByDevice);
             if (result.performanceSummary != null) {
                 if (result.performanceSummary.cpuAvg != null) {
-                    this.cpuAvg = result.performanceSummary.cpuAvg.value;
+                    this.cpu = parsePerformanceStat(result.performanceSummary.cpuAvg.value);
                 }
                 if (result.performanceSummary.memoryAvg != null) {
-                    this.memAvg = result.performanceSummary.memoryAvg.value;
+                    this.memory = parsePerformanceStat(result.performanceSummary.memoryAvg.value);
                 }
                 if (result.performanceSummary.threadsAvg != null) {
-                    this.threadAvg = result.performanceSummary.threadsAvg.value;
+                    this.threads = parsePerformanceStat(result.performanceSummary.threadsAvg.value);
                 }
                 if (result.performanceSummary.drawAvg != null) {
-                    this.drawAvg = result.performanceSummary.drawAvg.value;
+                    this.drawTime = parsePerformanceStat(result.performanceSummary.drawAvg.value);
                 }
                 if (result.performanceSummary.fpsAvg != null) {
-                    this.fpsAvg = result.performanceSummary.fpsAvg.value;
+                    this.fps = parsePerformanceStat(result.performanceSummary.fpsAvg.value);
                 }
             }
         }
         if (run != null) {
+            // Placeholders of runs which haven't reported yet still belong to their run.
+            if (result == null) {
+                this.id = run.id;
+            }
             this.url = run.getWebUrl();
             this.project = run.getProject().name;
         }
     }
 
+    /**
+     * Create a result which combines the results of AppThwack runs of the same build on multiple device pools.
+     */
+    private AppThwackTestResult(AbstractBuild<?, ?> build, List<AppThwackTestResult> runs) {
+        this.build = build;
+        this.runs = runs;
+
+        // Take the run details from the first run which reported results, placeholders lack them.
+        AppThwackTestResult first = runs.get(0);
+        for (AppThwackTestResult run : runs) {
+            if (run.status != null) {
+                first = run;
+                break;
+            }
+        }
+        this.id = first.id;
+        this.url = first.url;
+        this.project = first.project;
+        boolean completed = true;
+        boolean running = false;
+        Mean cpu = new Mean(), mem = new Mean(), threads = new Mean(), draw = new Mean(), fps = new Mean();
+        for (AppThwackTestResult run : runs) {
+            this.passCount += run.passCount;
+            this.warnCount += run.warnCount;
+            this.failCount += run.failCount;
+            this.totalCount += run.totalCount;
+            this.errorCount += run.errorCount;
+            this.duration += run.duration;
+            // The worst result of all runs is the result of the build.
+            if (resultSeverity.indexOf(run.result) > resultSeverity.indexOf(this.result)) {
+                this.result = run.result;
+            }
+            completed &= run.isCompleted();
+            running |= !run.isQueued();
+            cpu.add(run.cpu);
+            mem.add(run.memory);
+            threads.add(run.threads);
+            draw.add(run.drawTime);
+            fps.add(run.fps);
+        }
+
+        // Only completed once every run has completed and archived its results.
+        if (completed) {
+            this.status = "completed";
+            this.reportFile = first.reportFile;
+        }
+        else {
+            this.status = running ? "running" : "queued";
+        }
+        this.cpu = cpu.get();
+        this.memory = mem.get();
+        this.threads = threads.get();
+        this.drawTime = draw.get();
+        this.fps = fps.get();
+    }
+
+    /**
+     * Average of a performance stat over the runs which reported it.
+     */
+    private static class Mean {
+        private float sum;
+        private int count;
+
+        /**
+         * Add the stat of a run, unless the run didn't report it (NaN).
+         * @param value
+         */
+        void add(float value) {
+            if (!Float.isNaN(value)) {
+                sum += value;
+                count++;
+            }
+        }
+
+        /**
+         * Return the average or NaN if no run reported the stat.
+         * @return
+         */
+        float get() {
+            return (count > 0) ? sum / count : Float.NaN;
+        }
+    }
+
+    /**
+     * Return a single result for the given results of AppThwack runs on multiple device pools.
+     * Counters and device results are combined, performance stats are averaged over the runs which reported them
+     * and the worst result of all runs wins.
+     * @param build build which scheduled the AppThwack runs
+     * @param runs results of the individual runs
+     * @return
+     */
+    public static AppThwackTestResult merge(AbstractBuild<?, ?> build, List<AppThwackTestResult> runs) {
+        if (runs.size() == 1) {
+            return runs.get(0);
+        }
+        return new AppThwackTestResult(build, new ArrayList<AppThwackTestResult>(runs));
+    }
+
     static {
         resultMap.put("pass", Result.SUCCESS);
         resultMap.put("fail", Result.FAILURE);
@@ -110,185 +243,119 @@ public class AppThwackTestResult extends TestResult {
     }
 
     /**
-     * Create the graph image for the number of pass/warn/fail results in a test run, for the previous three Jenkins runs.
+     * Create the graph image for the number of pass/warn/fail results in a test run, for the previous Jenkins runs.
      * @param request
      * @param response
      * @throws IOException
      */
     public void doGraph(StaplerRequest request, StaplerResponse response) throws IOException {
-        // Abort if having Java AWT issues.
-        if (ChartUtil.awtProblemCause != null) {
-            response.sendRedirect2(String.format("%s/images/headless.png", request.getContextPath()));
-            return;
-        }
-
-        // Check the "If-Modified-Since" header and abort if we don't need re-create the graph.
-        if (isCompleted()) {
-            Calendar timestamp = getOwner().getTimestamp();
-            if (request.checkIfModified(timestamp, response)) {
-                return;
-            }
-        }
-
-        // Create new graph for this AppThwack result.
-        Graph graph = AppThwackGraph.createResultTrendGraph(build, isCompleted(), getPreviousResults(DefaultTrendGraphSize));
-        graph.doPng(request, response);
+        doTrendGraph(request, response, "result");
     }
 
     /**
-     * Create the graph image for the number of device minutes used in a test run, for the previous three Jenkins runs.
+     * Create the graph image for the number of device minutes used in a test run, for the previous Jenkins runs.
      * @param request
      * @param response
      * @throws IOException
      */
     public void doDurationGraph(StaplerRequest request, StaplerResponse response) throws IOException {
-        // Abort if having Java AWT issues.
-        if (ChartUtil.awtProblemCause != null) {
-            response.sendRedirect2(String.format("%s/images/headless.png", request.getContextPath()));
-            return;
-        }
-
-        // Check the "If-Modified-Since" header and abort if we don't need re-create the graph.
-        if (isCompleted()) {
-            Calendar timestamp = getOwner().getTimestamp();
-            if (request.checkIfModified(timestamp, response)) {
-                return;
-            }
-        }
-
-        // Create new duration graph for this AppThwack result.
-        Graph graph = AppThwackGraph.createDurationTrendGraph(build, isCompleted(), getPreviousResults(DefaultTrendGraphSize));
-        graph.doPng(request, response);
+        doTrendGraph(request, response, "duration");
     }
 
     /**
-     * Create the graph image for the average CPU usage for all devices in a test run, for the previous three Jenkins runs.
+     * Create the graph image for the average CPU usage for all devices in a test run, for the previous Jenkins runs.
      * @param request
      * @param response
      * @throws IOException
      */
     public void doCpuGraph(StaplerRequest request, StaplerResponse response) throws IOException {
-        // Abort if having Java AWT issues.
-        if (ChartUtil.awtProblemCause != null) {
-            response.sendRedirect2(String.format("%s/images/headless.png", request.getContextPath()));
-            return;
-        }
-
-        // Check the "If-Modified-Since" header and abort if we don't need re-create the graph.
-        if (isCompleted()) {
-            Calendar timestamp = getOwner().getTimestamp();
-            if (request.checkIfModified(timestamp, response)) {
-                return;
-            }
-        }
-
-        // Create new performance graph for this AppThwack result.
-        Graph graph = AppThwackGraph.createCpuTrendGraph(build, isCompleted(), getPreviousResults(DefaultTrendGraphSize));
-        graph.doPng(request, response);
+        doTrendGraph(request, response, "cpu");
     }
 
     /**
-     * Create the graph image for the average memory usage (KB) used for all devices in a test run, for the previous three Jenkins runs.
+     * Create the graph image for the average memory usage (KB) used for all devices in a test run, for the previous Jenkins runs.
      * @param request
      * @param response
      * @throws IOException
      */
     public void doMemoryGraph(StaplerRequest request, StaplerResponse response) throws IOException {
-        // Abort if having Java AWT issues.
-        if (ChartUtil.awtProblemCause != null) {
-            response.sendRedirect2(String.format("%s/images/headless.png", request.getContextPath()));
-            return;
-        }
-
-        // Check the "If-Modified-Since" header and abort if we don't need re-create the graph.
-        if (isCompleted()) {
-            Calendar timestamp = getOwner().getTimestamp();
-            if (request.checkIfModified(timestamp, response)) {
-                return;
-            }
-        }
-
-        // Create new performance graph for this AppThwack result.
-        Graph graph = AppThwackGraph.createMemoryTrendGraph(build, isCompleted(), getPreviousResults(DefaultTrendGraphSize));
-        graph.doPng(request, response);
+        doTrendGraph(request, response, "memory");
     }
 
     /**
-     * Create the graph image for the average number of threads used for all devices in a test run, for the previous three Jenkins runs.
+     * Create the graph image for the average number of threads used for all devices in a test run, for the previous Jenkins runs.
      * @param request
      * @param response
      * @throws IOException
      */
     public void doThreadGraph(StaplerRequest request, StaplerResponse response) throws IOException {
-        // Abort if having Java AWT issues.
-        if (ChartUtil.awtProblemCause != null) {
-            response.sendRedirect2(String.format("%s/images/headless.png", request.getContextPath()));
-            return;
-        }
+        doTrendGraph(request, response, "threads");
+    }
 
-        // Check the "If-Modified-Since" header and abort if we don't need re-create the graph.
-        if (isCompleted()) {
-            Calendar timestamp = getOwner().getTimestamp();
-            if (request.checkIfModified(timestamp, response)) {
-                return;
-            }
-        }
+    /**
+     * Create the graph image for the average frame draw times for all devices in a test run, for the previous Jenkins runs.
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    public void doFrameDrawGraph(StaplerRequest request, StaplerResponse response) throws IOException {
+        doTrendGraph(request, response, "drawTime");
+    }
 
-        // Create new performance graph for this AppThwack result.
-        Graph graph = AppThwackGraph.createThreadTrendGraph(build, isCompleted(), getPreviousResults(DefaultTrendGraphSize));
-        graph.doPng(request, response);
+    /**
+     * Create the graph image for the average frames per second of all devices in a test run, for the previous Jenkins runs.
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    public void doFpsGraph(StaplerRequest request, StaplerResponse response) throws IOException {
+        doTrendGraph(request, response, "fps");
     }
 
     /**
-     * Create the graph image for the average frame draw times for all devices in a test run, for the previous three Jenkins runs.
+     * Serve the trend graph image of the given metric, as named by {@link AppThwackMetricsStore.Series#getColumns(String)}.
      * @param request
      * @param response
+     * @param metric
      * @throws IOException
      */
-    public void doFrameDrawGraph(StaplerRequest request, StaplerResponse response) throws IOException {
+    private void doTrendGraph(StaplerRequest request, StaplerResponse response, String metric) throws IOException {
         // Abort if having Java AWT issues.
         if (ChartUtil.awtProblemCause != null) {
             response.sendRedirect2(String.format("%s/images/headless.png", request.getContextPath()));
             return;
         }
 
-        // Check the "If-Modified-Since" header and abort if we don't need re-create the graph.
-        if (isCompleted()) {
-            Calendar timestamp = getOwner().getTimestamp();
-            if (request.checkIfModified(timestamp, response)) {
-                return;
-            }
-        }
-
-        // Create new performance graph for this AppThwack result.
-        Graph graph = AppThwackGraph.createFrameDrawTrendGraph(build, isCompleted(), getPreviousResults(DefaultTrendGraphSize));
-        graph.doPng(request, response);
+        // Create new graph for this AppThwack result, clients revalidate graphs of completed results by their trend data.
+        int size = getTrendGraphSize();
+        AppThwackGraph graph = AppThwackGraph.createTrendGraph(build, isCompleted(), getTrend(size), metric);
+        graph.doPng(request, response, getGraphCacheKey(metric, size), getTrendETag(size));
     }
 
     /**
-     * Create the graph image for the average frames per second of all devices in a test run, for the previous three Jenkins runs.
+     * Serve the trend data (build numbers and metric values) of the previous Jenkins runs as JSON, for graphs
+     * rendered by the browser. The optional "metric" parameter limits the data to a single metric (or "result"
+     * for pass/warn/fail counts).
      * @param request
      * @param response
      * @throws IOException
      */
-    public void doFpsGraph(StaplerRequest request, StaplerResponse response) throws IOException {
-        // Abort if having Java AWT issues.
-        if (ChartUtil.awtProblemCause != null) {
-            response.sendRedirect2(String.format("%s/images/headless.png", request.getContextPath()));
+    public void doTrend(StaplerRequest request, StaplerResponse response) throws IOException {
+        AppThwackMetricsStore.Column[] columns = AppThwackMetricsStore.Series.getColumns(request.getParameter("metric"));
+        if (columns == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown metric");
             return;
         }
 
-        // Check the "If-Modified-Since" header and abort if we don't need re-create the graph.
-        if (isCompleted()) {
-            Calendar timestamp = getOwner().getTimestamp();
-            if (request.checkIfModified(timestamp, response)) {
-                return;
-            }
+        // Trends of completed results only change with the metrics store, the trend window or the downsampling.
+        int size = getTrendGraphSize();
+        String etag = getTrendETag(size);
+        if (etag != null && AppThwackUtils.checkETag(request, response, String.format("\"%s\"", etag))) {
+            return;
         }
 
-        // Create new performance graph for this AppThwack result.
-        Graph graph = AppThwackGraph.createFpsTrendGraph(build, isCompleted(), getPreviousResults(DefaultTrendGraphSize));
-        graph.doPng(request, response);
+        AppThwackMetricsStore.Series series = getTrend(size);
+        AppThwackUtils.writeJSON(response, series.downsample(AppThwackGraph.MaxGraphPoints, columns).toJSON(columns));
     }
 
     /**
@@ -296,7 +363,7 @@ public class AppThwackTestResult extends TestResult {
      * @return
      */
     public AppThwackTestResult getPreviousResult() {
-        AppThwackTestResultAction prev = AppThwackUtils.previousAppThwackBuildAction(build.getProject());
+        AppThwackTestResultAction prev = AppThwackUtils.previousAppThwackBuildAction(build);
         if (prev == null) {
             return null;
         }
@@ -304,78 +371,195 @@ public class AppThwackTestResult extends TestResult {
     }
 
     /**
-     * Return a list of up to (n) of the most recent/previous AppThwack results.
+     * Return the metrics of up to (n) of the most recent AppThwack results, up to and including this result.
+     * Previous results are read from the project's metrics store, only this result is taken live.
      * @param n
      * @return
      */
-    protected List<AppThwackTestResult> getPreviousResults(int n) {
-        List<AppThwackTestResult> results = getPreviousResults();
-        return results.subList(Math.max(0, results.size() - n), results.size());
-        //return results.subList(0, Math.min(n, results.size()));
+    protected AppThwackMetricsStore.Series getTrend(int n) {
+        AppThwackMetricsStore store = AppThwackMetricsStore.get(build.getProject());
+        return store.query(build.getNumber(), Math.max(0, n - 1)).with(build.getNumber(), this);
     }
 
     /**
-     * Return a list of all AppThwack results from all builds previous to the build that this result is tied to.
-     * The list is return in increasing, sequential order.
+     * Return the key under which the given trend graph of this result is cached, or null if it must not be
+     * cached because this result is still changing.
+     * @param metric name of the graphed metric
+     * @param window number of results in the graph
      * @return
      */
-    protected List<AppThwackTestResult> getPreviousResults() {
-        ArrayList<AppThwackTestResultAction> actions = AppThwackUtils.previousAppThwackBuilds(build.getProject());
-        ArrayList<AppThwackTestResult> results = new ArrayList<AppThwackTestResult>();
-        for (AppThwackTestResultAction action : actions) {
-            AppThwackTestResult result = action.getResult();
-            if (result == null) {
-                continue;
-            }
-            results.add(result);
+    private String getGraphCacheKey(String metric, int window) {
+        if (!isCompleted()) {
+            return null;
         }
-        Collections.reverse(results);
-        return results;
+        return String.format("%s%s|%d|%d|%d", AppThwackGraphCache.getProjectKey(build.getProject()), metric, window,
+                build.getNumber(), AppThwackMetricsStore.get(build.getProject()).getVersion());
     }
 
-    public float getCpuAvg() {
-        try {
-            return Float.parseFloat(cpuAvg);
-        }
-        catch (Exception e) {
-            return 0;
+    /**
+     * Return the validator of the trends of this result, or null if there is none because this result is still changing.
+     * @param window number of results in the trend
+     * @return
+     */
+    private String getTrendETag(int window) {
+        if (!isCompleted()) {
+            return null;
         }
+        return AppThwackGraph.getTrendETag(AppThwackMetricsStore.get(build.getProject()).getVersion(), window);
+    }
+
+    /**
+     * Return the number of results shown by the trend graphs of a build.
+     * @return
+     */
+    private static int getTrendGraphSize() {
+        AppThwackRecorder.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(AppThwackRecorder.DescriptorImpl.class);
+        return (descriptor != null) ? descriptor.getTrendGraphSize() : DefaultTrendGraphSize;
+    }
+
+    public float getCpuAvg() {
+        return Float.isNaN(cpu) ? 0 : cpu;
     }
 
     public float getMemoryAvg() {
+        return Float.isNaN(memory) ? 0 : memory;
+    }
+
+    public float getThreadAvg() {
+        return Float.isNaN(threads) ? 0 : threads;
+    }
+
+    public float getDrawTimeAvg() {
+        return Float.isNaN(drawTime) ? 0 : drawTime;
+    }
+
+    public float getFpsAvg() {
+        return Float.isNaN(fps) ? 0 : fps;
+    }
+
+    /**
+     * Parse a performance stat reported by AppThwack.
+     * @param value
+     * @return parsed value or NaN if it is missing or malformed
+     */
+    private static float parsePerformanceStat(String value) {
+        if (value == null) {
+            return Float.NaN;
+        }
         try {
-            return Float.parseFloat(memAvg);
+            return Float.parseFloat(value);
         }
-        catch (Exception e) {
-            return 0;
+        catch (NumberFormatException e) {
+            return Float.NaN;
         }
     }
 
-    public float getThreadAvg() {
-        try {
-            return Float.parseFloat(threadAvg);
+    /**
+     * Migrate results of builds recorded before performance stats were parsed up front.
+     * @return
+     */
+    protected Object readResolve() {
+        if (cpuAvg != null || memAvg != null || threadAvg != null || drawAvg != null || fpsAvg != null) {
+            cpu = parsePerformanceStat(cpuAvg);
+            memory = parsePerformanceStat(memAvg);
+            threads = parsePerformanceStat(threadAvg);
+            drawTime = parsePerformanceStat(drawAvg);
+            fps = parsePerformanceStat(fpsAvg);
+            cpuAvg = memAvg = threadAvg = drawAvg = fpsAvg = null;
         }
-        catch (Exception e) {
-            return 0;
+        return this;
+    }
+
+    /**
+     * Return the browser which serves the contents of the results archive for this run,
+     * or null if the archive hasn't been stored (yet).
+     * @return
+     */
+    public synchronized AppThwackArchiveBrowser getFiles() {
+        // Each run of a combined result has its own archive.
+        if (runs != null) {
+            return null;
         }
+        if (archiveBrowser == null) {
+            File archive = new File(build.getArtifactsDir(), String.format("results-%d.zip", id));
+            if (!archive.exists()) {
+                return null;
+            }
+            archiveBrowser = new AppThwackArchiveBrowser(archive);
+        }
+        return archiveBrowser;
     }
 
-    public float getDrawTimeAvg() {
+    /**
+     * Return true if this build released its executor and logged the completion of its AppThwack runs separately.
+     * @return
+     */
+    public boolean isDetachedLog() {
+        return build != null && new File(build.getRootDir(), DetachedLogFileName).exists();
+    }
+
+    /**
+     * Serve the log written while finalizing a build which released its executor (detached mode).
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    public void doDetachedLog(StaplerRequest request, StaplerResponse response) throws IOException {
+        File file = new File(build.getRootDir(), DetachedLogFileName);
+        if (!file.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setContentType("text/plain;charset=UTF-8");
+        InputStream in = new FileInputStream(file);
         try {
-            return Float.parseFloat(drawAvg);
+            Util.copyStream(in, response.getOutputStream());
         }
-        catch (Exception e) {
-            return 0;
+        finally {
+            in.close();
         }
     }
 
-    public float getFpsAvg() {
-        try {
-            return Float.parseFloat(fpsAvg);
+    /**
+     * Return the results of the individual AppThwack runs (one per device pool) this result combines,
+     * or null if this is the result of a single run.
+     * @return
+     */
+    public List<AppThwackTestResult> getRuns() {
+        return runs;
+    }
+
+    /**
+     * Return the result of the individual AppThwack run with the given id.
+     * @param id AppThwack run id
+     * @return
+     */
+    public AppThwackTestResult getRun(String id) {
+        if (runs == null) {
+            return null;
         }
-        catch (Exception e) {
-            return 0;
+        for (AppThwackTestResult run : runs) {
+            if (String.valueOf(run.id).equals(id)) {
+                return run;
+            }
         }
+        return null;
+    }
+
+    /**
+     * Return the name of the device pool this result was run on or null if unknown.
+     * @return
+     */
+    public String getDevicePool() {
+        return devicePool;
+    }
+
+    /**
+     * Return the test filter of the shard this result was run with or null if the tests weren't sharded.
+     * @return
+     */
+    public String getTestFilter() {
+        return testFilter;
     }
 
     public String getReportUrl() {
@@ -386,6 +570,21 @@ public class AppThwackTestResult extends TestResult {
         return id;
     }
 
+    /**
+     * Return the ids of all AppThwack runs combined in this result.
+     * @return
+     */
+    public int[] getRunIds() {
+        if (runs == null) {
+            return new int[] { id };
+        }
+        int[] ids = new int[runs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = runs.get(i).id;
+        }
+        return ids;
+    }
+
     public String getStatus() {
         return status;
     }
@@ -394,6 +593,39 @@ public class AppThwackTestResult extends TestResult {
         return project;
     }
 
+    /**
+     * Return true if this result is still waiting for devices to begin execution.
+     * @return
+     */
+    public Boolean isQueued() {
+        return status == null
+                || status.equalsIgnoreCase("new")
+                || status.equalsIgnoreCase("queued");
+    }
+
+    /**
+     * Return true if this result is from a run which is currently executing on devices.
+     * @return
+     */
+    public Boolean isRunning() {
+        return !isQueued() && !status.equalsIgnoreCase("completed");
+    }
+
+    /**
+     * Return the number of devices which reported results for this run.
+     * @return
+     */
+    public int getDeviceCount() {
+        int count = 0;
+        List<List<AppThwackResult.ResultContainer>> groups = Arrays.asList(getPassByDevice(), getWarnByDevice(), getFailByDevice());
+        for (List<AppThwackResult.ResultContainer> group : groups) {
+            if (group != null) {
+                count = Math.max(count, group.size());
+            }
+        }
+        return count;
+    }
+
     /**
      * Return true if this result is "completed". A completed result is a result
      * who is both marked as completed and has had its results archived for download.
@@ -426,28 +658,100 @@ public class AppThwackTestResult extends TestResult {
         if (id == null || getId().equalsIgnoreCase(id)) {
             return this;
         }
-        ArrayList<AppThwackTestResultAction> prevActions = AppThwackUtils.previousAppThwackBuilds(build.getProject());
-        if (prevActions == null || prevActions.isEmpty()) {
+        // Ids are derived from the AppThwack run id, look up the build which ran it.
+        if (!id.startsWith("AppThwack")) {
             return null;
         }
-        for (AppThwackTestResultAction action : prevActions) {
-            AppThwackTestResult prevResult = action.getResult();
-            if (prevResult == null) {
-                continue;
-            }
-            if (prevResult.getId().equalsIgnoreCase(id)) {
-                return prevResult;
-            }
+        int runId;
+        try {
+            runId = Integer.parseInt(id.substring("AppThwack".length()));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        AppThwackTestResultAction action = AppThwackUtils.appThwackBuildActionByRunId(build.getProject(), runId);
+        if (action == null || action.getResult() == null) {
+            return null;
+        }
+        AppThwackTestResult prevResult = action.getResult();
+        if (prevResult.getId().equalsIgnoreCase(id)) {
+            return prevResult;
         }
         return null;
     }
 
+    /**
+     * Write the device results of this run next to the build record, they are no longer held in memory
+     * once written and will be loaded again on demand. Runs are polled repeatedly while they execute, so
+     * the file is only written when the device results differ from the previous snapshot of the run or the
+     * run just completed.
+     * @param previous previous snapshot of this run or null if there is none
+     */
+    public synchronized void saveDeviceResults(AppThwackTestResult previous) {
+        if (unsavedDeviceResults == null || build == null) {
+            return;
+        }
+        AppThwackDeviceResults saved = (previous != null) ? previous.getSavedDeviceResults() : null;
+        boolean completing = isCompleted() && (previous == null || !previous.isCompleted());
+        if ((!completing && unsavedDeviceResults.equals(saved)) || unsavedDeviceResults.save(build, id)) {
+            deviceResults = new SoftReference<AppThwackDeviceResults>(unsavedDeviceResults);
+            unsavedDeviceResults = null;
+        }
+    }
+
+    /**
+     * Return the device results of this result which have been written, if they are still in memory.
+     */
+    private synchronized AppThwackDeviceResults getSavedDeviceResults() {
+        return (unsavedDeviceResults == null && deviceResults != null) ? deviceResults.get() : null;
+    }
+
+    /**
+     * Return the device results of this result, loading them from disk if they were collected.
+     * Device results of combined results are the device results of all runs.
+     * @return
+     */
+    private synchronized AppThwackDeviceResults getDeviceResults() {
+        if (unsavedDeviceResults != null) {
+            return unsavedDeviceResults;
+        }
+        if (passByDevice != null || warnByDevice != null || failByDevice != null) {
+            return new AppThwackDeviceResults(passByDevice, warnByDevice, failByDevice);
+        }
+        AppThwackDeviceResults results = (deviceResults != null) ? deviceResults.get() : null;
+        if (results != null) {
+            return results;
+        }
+        if (runs != null) {
+            results = AppThwackDeviceResults.empty();
+            for (AppThwackTestResult run : runs) {
+                addAll(results.getPassByDevice(), run.getPassByDevice());
+                addAll(results.getWarnByDevice(), run.getWarnByDevice());
+                addAll(results.getFailByDevice(), run.getFailByDevice());
+            }
+        }
+        else if (build != null) {
+            results = AppThwackDeviceResults.load(build, id);
+        }
+        if (results == null) {
+            results = AppThwackDeviceResults.empty();
+        }
+        deviceResults = new SoftReference<AppThwackDeviceResults>(results);
+        return results;
+    }
+
+    private static void addAll(List<AppThwackResult.ResultContainer> to, List<AppThwackResult.ResultContainer> from) {
+        if (from != null) {
+            to.addAll(from);
+        }
+    }
+
     /**
      * Return list of test passes grouped by device.
      * @return
      */
     public List<AppThwackResult.ResultContainer> getPassByDevice() {
-        return passByDevice;
+        return getDeviceResults().getPassByDevice();
     }
 
     /**
@@ -455,7 +759,7 @@ public class AppThwackTestResult extends TestResult {
      * @return
      */
     public List<AppThwackResult.ResultContainer> getWarnByDevice() {
-        return warnByDevice;
+        return getDeviceResults().getWarnByDevice();
     }
 
     /**
@@ -463,7 +767,7 @@ public class AppThwackTestResult extends TestResult {
      * @return
      */
     public List<AppThwackResult.ResultContainer> getFailByDevice() {
-        return failByDevice;
+        return getDeviceResults().getFailByDevice();
     }
 
     /**
@@ -16,7 +16,11 @@ import hudson.util.Graph;
 
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.lang.InterruptedException;
 
 import javax.servlet.ServletException;
@@ -27,6 +31,7 @@ import org.kohsuke.stapler.StaplerProxy;
 import org.kohsuke.stapler.export.Exported;
 import org.jenkinsci.plugins.appthwack.AppThwackTestResult;
 
+import com.appthwack.appthwack.AppThwackResult;
 import com.appthwack.appthwack.AppThwackRun;
 
 /**
@@ -39,11 +44,14 @@ import com.appthwack.appthwack.AppThwackRun;
  */
 public class AppThwackTestResultAction extends AbstractTestResultAction<AppThwackTestResultAction> implements StaplerProxy {
 
-    private static final int DefaultUpdateInterval = 30 * 1000;
-
     private PrintStream log;
 
-    private AppThwackTestResult result;
+    private volatile AppThwackTestResult result;
+
+    private Map<Integer, AppThwackTestResult> runResults;
+
+    private long runningSince;
+    private long completedAt;
 
     public AppThwackTestResultAction(AbstractBuild<?, ?> owner, PrintStream log) {
         super(owner);
@@ -59,24 +67,99 @@ public class AppThwackTestResultAction extends AbstractTestResultAction<AppThwac
     }
 
     /**
-     * Blocking function which periodically polls the given AppThwack run until its completed. During this waiting period,
-     * we will grab the latest results reported by AppThwack and updated our internal result "snapshot" which will be used
-     * to populate/inform the UI of test results/progress.
+     * Register an AppThwack run scheduled by this build on the given device pool. The results
+     * of all registered runs are combined into a single result.
+     * @param run
+     * @param devicePool name of the device pool the run was scheduled on
+     * @param testFilter test filter of the shard the run executes or null if the tests aren't sharded
+     */
+    public synchronized void addRun(AppThwackRun run, String devicePool, String testFilter) {
+        if (runResults == null) {
+            runResults = new LinkedHashMap<Integer, AppThwackTestResult>();
+        }
+        // Placeholder until the first update so the combined result isn't completed before every run is.
+        runResults.put(run.id, new AppThwackTestResult(owner, run, null, devicePool, testFilter));
+        result = AppThwackTestResult.merge(owner, new ArrayList<AppThwackTestResult>(runResults.values()));
+    }
+
+    /**
+     * Grab the latest results reported by AppThwack for the given run and update our internal result "snapshot".
      * @param run
+     * @return true if the run has completed, false otherwise
      */
-    public void waitForRunCompletion(AppThwackRun run) {
-        while (true) {
-            result = new AppThwackTestResult(owner, run, run.getResults());
-            if (result.isCompleted()) {
-                break;
+    public boolean updateResult(AppThwackRun run) {
+        // Fetch outside the lock, runs of the same build are polled concurrently.
+        AppThwackResult runResult = run.getResults();
+        synchronized (this) {
+            AppThwackTestResult previous = getRunResult(run.id);
+            String devicePool = (previous != null) ? previous.getDevicePool() : null;
+            String testFilter = (previous != null) ? previous.getTestFilter() : null;
+            AppThwackTestResult updated = new AppThwackTestResult(owner, run, runResult, devicePool, testFilter);
+            // Device results live next to the build record rather than in it.
+            updated.saveDeviceResults(previous);
+            if (runResults == null) {
+                runResults = new LinkedHashMap<Integer, AppThwackTestResult>();
             }
-            try {
-                Thread.sleep(DefaultUpdateInterval);
+            runResults.put(run.id, updated);
+            result = AppThwackTestResult.merge(owner, new ArrayList<AppThwackTestResult>(runResults.values()));
+
+            // Track wall clock time of the runs so later builds can estimate their completion.
+            long now = System.currentTimeMillis();
+            if (runningSince == 0 && (result.isRunning() || result.isCompleted())) {
+                runningSince = now;
+            }
+            if (completedAt == 0 && result.isCompleted()) {
+                completedAt = now;
             }
-            catch(InterruptedException ex) {
-                break;
+            return updated.isCompleted();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the current results for the AppThwack run with the given id.
+     * @param id AppThwack run id
+     * @return
+     */
+    public synchronized AppThwackTestResult getRunResult(int id) {
+        if (runResults == null) {
+            // Builds recorded before multiple runs were supported only hold the single result.
+            return (result != null && result.getRunId() == id) ? result : null;
+        }
+        return runResults.get(id);
+    }
+
+    /**
+     * Returns a snapshot of the current results for each AppThwack run of this build.
+     * @return
+     */
+    public synchronized List<AppThwackTestResult> getRunResults() {
+        if (runResults == null) {
+            List<AppThwackTestResult> results = new ArrayList<AppThwackTestResult>();
+            if (result != null) {
+                results.add(result);
             }
+            return results;
+        }
+        return new ArrayList<AppThwackTestResult>(runResults.values());
+    }
+
+    /**
+     * Returns the time (ms) at which the AppThwack runs were first seen executing or zero if it hasn't started yet.
+     * @return
+     */
+    public long getRunningSince() {
+        return runningSince;
+    }
+
+    /**
+     * Returns the wall clock time (ms) the AppThwack runs spent executing or zero if unknown.
+     * @return
+     */
+    public long getRunDuration() {
+        if (runningSince == 0 || completedAt == 0) {
+            return 0;
         }
+        return completedAt - runningSince;
     }
 
     /**
@@ -89,7 +172,7 @@ public class AppThwackTestResultAction extends AbstractTestResultAction<AppThwac
         if (owner == null) {
             return null;
         }
-        return AppThwackUtils.previousAppThwackBuildAction(build.getProject());
+        return AppThwackUtils.previousAppThwackBuildAction(build);
     }
 
     /**
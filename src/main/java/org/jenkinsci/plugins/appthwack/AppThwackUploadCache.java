@@ -0,0 +1,197 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.XmlFile;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import com.appthwack.appthwack.AppThwackFile;
+
+/**
+ * Persistent cache of files previously uploaded to AppThwack, keyed by the SHA-256
+ * digest of their content.
+ *
+ * Uploading an identical app or test artifact again (test only changes, re-runs against
+ * another device pool, etc.) reuses the file already stored on AppThwack instead of transferring it again.
+ * Entries expire after the time AppThwack retains uploaded files.
+ *
+ */
+public class AppThwackUploadCache {
+
+    private static final Logger LOGGER = Logger.getLogger(AppThwackUploadCache.class.getName());
+
+    private static final long DefaultTimeToLive = 24 * 60 * 60 * 1000;
+    private static final int BufferSize = 64 * 1024;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private transient XmlFile file;
+
+    /**
+     * Single cached upload.
+     */
+    public static class Entry {
+        private final AppThwackFile upload;
+        private final long uploadedAt;
+
+        public Entry(AppThwackFile upload, long uploadedAt) {
+            this.upload = upload;
+            this.uploadedAt = uploadedAt;
+        }
+
+        public boolean isExpired(long now) {
+            return now - uploadedAt > DefaultTimeToLive;
+        }
+    }
+
+    /**
+     * Load the upload cache stored in the given file, or create an empty one if it does not exist.
+     * @param file file which stores the cache
+     * @return
+     */
+    public static AppThwackUploadCache load(File file) {
+        XmlFile xml = new XmlFile(file);
+        AppThwackUploadCache cache = null;
+        if (xml.exists()) {
+            try {
+                cache = (AppThwackUploadCache) xml.read();
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format("Unable to load AppThwack upload cache %s", file), e);
+            }
+        }
+        if (cache == null) {
+            cache = new AppThwackUploadCache();
+        }
+        cache.file = xml;
+        return cache;
+    }
+
+    /**
+     * Return the previous upload of a file with the given digest for the given account or null if there is none.
+     * @param apiKey API key of the account which uploaded the file
+     * @param digest SHA-256 digest of the file content
+     * @return
+     */
+    public synchronized AppThwackFile get(String apiKey, String digest) {
+        Entry entry = entries.get(getKey(apiKey, digest));
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return entry.upload;
+    }
+
+    /**
+     * Store the upload of a file with the given digest for the given account.
+     * @param apiKey API key of the account which uploaded the file
+     * @param digest SHA-256 digest of the file content
+     * @param upload object representing the remote file stored on AppThwack
+     */
+    public synchronized void put(String apiKey, String digest, AppThwackFile upload) {
+        long now = System.currentTimeMillis();
+
+        // Drop expired entries so the cache doesn't grow unbounded.
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+        entries.put(getKey(apiKey, digest), new Entry(upload, now));
+        save();
+    }
+
+    private void save() {
+        try {
+            file.write(this);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to save AppThwack upload cache %s", file), e);
+        }
+    }
+
+    /**
+     * Uploads are only valid for the account which made them. Key by a digest of the
+     * API key so the key itself isn't written to disk.
+     */
+    private static String getKey(String apiKey, String digest) {
+        return String.format("%s-%s", digest(apiKey), digest);
+    }
+
+    /**
+     * Return the hex encoded SHA-256 digest of the given file.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static String digest(File file) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BufferSize];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Return the hex encoded SHA-256 digest of the given string.
+     * @param value
+     * @return
+     */
+    public static String digest(String value) {
+        MessageDigest digest = createDigest();
+        try {
+            return toHex(digest.digest(value.getBytes("UTF-8")));
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 digest of a file on the node which holds it.
+     */
+    public static class DigestCallable implements FileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        public String invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            return digest(file);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+}
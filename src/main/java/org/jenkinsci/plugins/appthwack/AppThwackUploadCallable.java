@@ -0,0 +1,145 @@
+package org.jenkinsci.plugins.appthwack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import com.appthwack.appthwack.AppThwackException;
+import com.appthwack.appthwack.AppThwackFile;
+
+/**
+ * Uploads a file to AppThwack from the node which holds it.
+ *
+ * Artifacts are built in the (potentially remote) workspace. Uploading them from there
+ * avoids first pulling them onto the master, which would double the network traffic of
+ * every build and make the master the bottleneck for all mobile jobs.
+ *
+ * Only the id and name of the uploaded file travel back over the remoting channel; the master
+ * never deserializes anything else an agent sends it and rebuilds the file from those.
+ *
+ * Failures are classified where they happen, so only transient ones (dropped connections,
+ * rate limiting, server errors) are retried by the caller.
+ *
+ */
+public class AppThwackUploadCallable implements FileCallable<AppThwackUploadCallable.Upload> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * HTTP status named in a failure message, e.g. "status 503", "status code: 429" or "HTTP/1.1 502".
+     * Only numbers introduced like a status count, so file sizes or ports in a message don't.
+     */
+    private static final Pattern StatusPattern = Pattern.compile("(?i)\\b(?:status(?: code)?|HTTP(?:/\\d(?:\\.\\d)?)?)[\\s:=]+([45]\\d\\d)\\b");
+
+    /**
+     * Failed upload which knows whether it is worth trying again.
+     */
+    public static class UploadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean isTransient;
+
+        public UploadException(String message, boolean isTransient) {
+            super(message);
+            this.isTransient = isTransient;
+        }
+
+        /**
+         * Return true if the upload may succeed when tried again.
+         * @return
+         */
+        public boolean isTransient() {
+            return isTransient;
+        }
+    }
+
+    /**
+     * The uploaded file as returned to the master.
+     */
+    public static class Upload implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int id;
+        private final String name;
+
+        public Upload(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        /**
+         * Return the uploaded file.
+         * @return
+         */
+        public AppThwackFile toFile() {
+            AppThwackFile file = new AppThwackFile();
+            file.file_id = id;
+            file.name = name;
+            return file;
+        }
+    }
+
+    private final String apiKey;
+
+    public AppThwackUploadCallable(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+    public Upload invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+        if (!file.isFile()) {
+            throw new UploadException(String.format("File %s not found", file), false);
+        }
+        try {
+            AppThwackFile upload = AppThwackClients.get(apiKey).uploadFile(file);
+            if (upload == null || upload.file_id == null) {
+                return null;
+            }
+            return new Upload(upload.file_id, upload.name);
+        }
+        catch (AppThwackException e) {
+            UploadException failure = new UploadException(e.getMessage(), isTransient(e));
+            failure.initCause(e);
+            throw failure;
+        }
+    }
+
+    /**
+     * Return true if the given upload failure is transient: an I/O error talking to AppThwack
+     * (refused or dropped connection, timeout) or a response with status 429 or 5xx.
+     * Any other response (bad API key, rejected file) fails again when retried.
+     * The AppThwack client reports rejected requests as a plain {@link AppThwackException} without
+     * the response status, so the status is taken from the message where it is explicitly named.
+     * @param e upload failure
+     * @return
+     */
+    static boolean isTransient(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+            if (cause.getMessage() == null) {
+                continue;
+            }
+            Matcher matcher = StatusPattern.matcher(cause.getMessage());
+            if (matcher.find()) {
+                int status = Integer.parseInt(matcher.group(1));
+                return status == 429 || status >= 500;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the uploaded file from the result of this callable.
+     * @param upload result of this callable
+     * @return
+     */
+    public static AppThwackFile toFile(Upload upload) {
+        return (upload != null) ? upload.toFile() : null;
+    }
+}
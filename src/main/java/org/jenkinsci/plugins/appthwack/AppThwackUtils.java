@@ -1,7 +1,15 @@
 package org.jenkinsci.plugins.appthwack;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import hudson.model.Action;
 import hudson.model.AbstractBuild;
@@ -10,6 +18,12 @@ import hudson.model.Job;
 import hudson.model.Run;
 
 import org.jenkinsci.plugins.appthwack.AppThwackTestResultAction;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONObject;
 
 /**
  * Contains collection of helper functions for common AppThwack/Jenkins actions.
@@ -18,6 +32,8 @@ import org.jenkinsci.plugins.appthwack.AppThwackTestResultAction;
  */
 public class AppThwackUtils {
 
+    private static final int DurationFitIterations = 20;
+
     /**
      * Returns the AppThwack test run action from the most recent build.
      * @param project jenkins project which contains builds/runs to examine
@@ -37,36 +53,120 @@ public class AppThwackUtils {
      * @return
      */
     public static AbstractBuild<?, ?> previousAppThwackBuild(AbstractProject<?, ?> project) {
-        AbstractBuild<?, ?> last = (AbstractBuild<?, ?>) project.getLastBuild();
-        while (last != null) {
-            if (last.getAction(AppThwackTestResultAction.class) != null) {
-                break;
+        AppThwackBuildIndex index = AppThwackBuildIndex.get(project);
+        AppThwackBuildIndex.Entry entry = index.getLatest();
+        while (entry != null) {
+            AbstractBuild<?, ?> build = getAppThwackBuild(project, entry);
+            if (build != null) {
+                return build;
             }
-            last = last.getPreviousBuild();
+            entry = index.getPrevious(entry.getNumber());
         }
-        return last;
+        return null;
     }
 
     /**
-     * Return collection of all previous builds of the given project which
-     * contain an AppThwack test run.
+     * Returns the AppThwack test run action of the most recent build before the given build.
+     * @param build build to start searching from (exclusive)
+     * @return
+     */
+    public static AppThwackTestResultAction previousAppThwackBuildAction(AbstractBuild<?, ?> build) {
+        AbstractProject<?, ?> project = build.getProject();
+        AppThwackBuildIndex index = AppThwackBuildIndex.get(project);
+        AppThwackBuildIndex.Entry entry = index.getPrevious(build.getNumber());
+        while (entry != null) {
+            AbstractBuild<?, ?> prev = getAppThwackBuild(project, entry);
+            if (prev != null) {
+                return prev.getAction(AppThwackTestResultAction.class);
+            }
+            entry = index.getPrevious(entry.getNumber());
+        }
+        return null;
+    }
+
+    /**
+     * Return collection of (up to n) most recent builds of the given project which contain an AppThwack test run.
+     * Only the returned builds are loaded.
      * @param project jenkins project which contains runs to examine
+     * @param n maximum number of builds to return
+     * @return
+     */
+    public static ArrayList<AppThwackTestResultAction> previousAppThwackBuilds(AbstractProject<?, ?> project, int n) {
+        return take(new AppThwackBuildHistory(project), n);
+    }
+
+    /**
+     * Return collection of (up to n) most recent builds which contain an AppThwack test run, starting with the given build (inclusive).
+     * Only the returned builds are loaded.
+     * @param build build to start from
+     * @param n maximum number of builds to return
      * @return
      */
-    public static ArrayList<AppThwackTestResultAction> previousAppThwackBuilds(AbstractProject<?, ?> project) {
+    public static ArrayList<AppThwackTestResultAction> previousAppThwackBuilds(AbstractBuild<?, ?> build, int n) {
+        return take(new AppThwackBuildHistory(build.getProject(), build.getNumber()), n);
+    }
+
+    private static ArrayList<AppThwackTestResultAction> take(AppThwackBuildHistory history, int n) {
         ArrayList<AppThwackTestResultAction> actions = new ArrayList<AppThwackTestResultAction>();
-        
-        AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) project.getLastBuild();
-        while (build != null) {
-            AppThwackTestResultAction action = build.getAction(AppThwackTestResultAction.class);
-            if (action != null) {
-                actions.add(action);
-            }
-            build = build.getPreviousBuild();
+        Iterator<AppThwackTestResultAction> iterator = history.iterator();
+        while (actions.size() < n && iterator.hasNext()) {
+            actions.add(iterator.next());
         }
         return actions;
     }
 
+    /**
+     * Record the current AppThwack results of the given build in the build index and metrics store of its project,
+     * unless they are recorded already.
+     * @param build
+     */
+    public static void recordAppThwackBuild(AbstractBuild<?, ?> build) {
+        AbstractProject<?, ?> project = build.getProject();
+        if (!AppThwackBuildIndex.get(project).put(build)) {
+            return;
+        }
+        AppThwackMetricsStore.get(project).append(build);
+        AppThwackGraphCache.getInstance().invalidate(AppThwackGraphCache.getProjectKey(project));
+    }
+
+    /**
+     * Drop the given build from the build index and metrics store of its project.
+     * @param build
+     */
+    public static void forgetAppThwackBuild(AbstractBuild<?, ?> build) {
+        AbstractProject<?, ?> project = build.getProject();
+        AppThwackBuildIndex.get(project).remove(build.getNumber());
+        AppThwackMetricsStore.get(project).remove(build.getNumber());
+        AppThwackGraphCache.getInstance().invalidate(AppThwackGraphCache.getProjectKey(project));
+    }
+
+    /**
+     * Returns the AppThwack test run action of the build which ran the AppThwack run with the given id.
+     * @param project jenkins project which contains runs to examine
+     * @param runId AppThwack run id
+     * @return
+     */
+    public static AppThwackTestResultAction appThwackBuildActionByRunId(AbstractProject<?, ?> project, int runId) {
+        AppThwackBuildIndex.Entry entry = AppThwackBuildIndex.get(project).getByRunId(runId);
+        if (entry == null) {
+            return null;
+        }
+        AbstractBuild<?, ?> build = getAppThwackBuild(project, entry);
+        return (build == null) ? null : build.getAction(AppThwackTestResultAction.class);
+    }
+
+    /**
+     * Load the build of the given index entry, dropping the entry if the build (or its AppThwack run) no longer exists.
+     */
+    private static AbstractBuild<?, ?> getAppThwackBuild(AbstractProject<?, ?> project, AppThwackBuildIndex.Entry entry) {
+        AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) project.getBuildByNumber(entry.getNumber());
+        if (build == null || build.getAction(AppThwackTestResultAction.class) == null) {
+            AppThwackBuildIndex.get(project).remove(entry.getNumber());
+            return null;
+        }
+        return build;
+    }
+
     /**
      * Returns the most recent AppThwack test result from the previous build
      * @param job job which generated an AppThwack test result
@@ -83,4 +183,240 @@ public class AppThwackUtils {
         }
         return action.getResult();
     }
+
+    /**
+     * Estimate the wall clock time (ms) an AppThwack run scheduled by the given build will take to execute,
+     * based on the most recent previous AppThwack runs of its project. Runs which recorded their wall clock time
+     * are used as is, older runs are estimated from the device minutes they used spread across their devices.
+     * Each previous run is reduced to the time it took per device, which is scaled by the number of devices of the
+     * run being estimated, so a device pool which grew or shrank since doesn't throw the estimate off.
+     * @param build build which scheduled the AppThwack run
+     * @param devicePool name of the device pool of the run, previous runs on the same device pool are preferred
+     * @param devices number of devices of the run, zero if unknown to take it from the last run on the same device pool
+     * @param samples maximum number of previous runs to consider
+     * @return estimated duration or zero if there is no history to estimate from
+     */
+    public static long estimateRunDuration(AbstractBuild<?, ?> build, String devicePool, int devices, int samples) {
+        double perDevice = 0;
+        long total = 0;
+        int count = 0;
+        Iterator<AppThwackTestResultAction> history = new AppThwackBuildHistory(build.getProject(), build.getNumber() - 1).iterator();
+        while (history.hasNext() && count < samples) {
+            AppThwackTestResultAction action = history.next();
+            if (action.getResult() == null || !action.getResult().isCompleted()) {
+                continue;
+            }
+            AppThwackTestResult result = action.getResult();
+            for (AppThwackTestResult run : action.getRunResults()) {
+                if (devicePool != null && devicePool.equals(run.getDevicePool())) {
+                    result = run;
+                    if (devices <= 0) {
+                        devices = run.getDeviceCount();
+                    }
+                    break;
+                }
+            }
+            int resultDevices = Math.max(1, result.getDeviceCount());
+            long duration = action.getRunDuration();
+            if (duration <= 0) {
+                duration = (long) ((double) result.getDuration() / resultDevices * 60 * 1000);
+            }
+            if (duration > 0) {
+                total += duration;
+                perDevice += (double) duration / resultDevices;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        return (devices > 0) ? (long) (perDevice / count * devices) : total / count;
+    }
+
+    /**
+     * Estimate the device minutes each test (TestCase/TestSuite filter entry) takes, based on the sharded
+     * AppThwack runs of the most recent previous builds. AppThwack only reports the minutes used by a run as
+     * a whole, not per test, so the per test minutes are fitted to the shard minutes of several builds
+     * (see {@link #fitTestDurations(List, List)}).
+     * @param build build which is about to shard its tests
+     * @param samples maximum number of previous builds to consider
+     * @return map of test name to estimated device minutes, empty if there is no history
+     */
+    public static Map<String, Float> estimateTestDurations(AbstractBuild<?, ?> build, int samples) {
+        List<List<String>> shards = new ArrayList<List<String>>();
+        List<Float> minutes = new ArrayList<Float>();
+        int count = 0;
+        Iterator<AppThwackTestResultAction> history = new AppThwackBuildHistory(build.getProject(), build.getNumber() - 1).iterator();
+        while (history.hasNext() && count < samples) {
+            AppThwackTestResultAction action = history.next();
+            if (action.getResult() != null && action.getResult().isCompleted()) {
+                boolean sharded = false;
+                for (AppThwackTestResult result : action.getRunResults()) {
+                    List<String> tests = splitTestFilter(result.getTestFilter());
+                    if (tests.isEmpty() || result.getDuration() <= 0) {
+                        continue;
+                    }
+                    sharded = true;
+                    shards.add(tests);
+                    minutes.add(result.getDuration());
+                }
+                if (sharded) {
+                    count++;
+                }
+            }
+        }
+        return fitTestDurations(shards, minutes);
+    }
+
+    /**
+     * Fit the minutes of each test to the observed minutes of the shards which ran them.
+     *
+     * Each test starts out with the average of its shards' minutes per test. The minutes of every
+     * shard are then repeatedly redistributed across its tests in proportion to their current estimates
+     * and each test takes the average of what it was attributed. As shards are composed differently from
+     * build to build, a slow test pulls its shards' minutes towards itself and away from the fast tests it
+     * happened to share a shard with, instead of every test of a shard counting the same.
+     * @param shards tests of each observed shard
+     * @param minutes device minutes of each observed shard
+     * @return map of test name to estimated device minutes
+     */
+    static Map<String, Float> fitTestDurations(List<List<String>> shards, List<Float> minutes) {
+        Map<String, Float> durations = new HashMap<String, Float>();
+        Map<String, float[]> totals = new HashMap<String, float[]>();
+        for (int i = 0; i < shards.size(); i++) {
+            List<String> tests = shards.get(i);
+            for (String test : tests) {
+                addSample(totals, test, minutes.get(i) / tests.size());
+            }
+        }
+        averageSamples(totals, durations);
+
+        for (int iteration = 0; iteration < DurationFitIterations; iteration++) {
+            totals.clear();
+            for (int i = 0; i < shards.size(); i++) {
+                List<String> tests = shards.get(i);
+                float estimated = 0;
+                for (String test : tests) {
+                    estimated += durations.get(test);
+                }
+                for (String test : tests) {
+                    float share = (estimated > 0) ? durations.get(test) / estimated : 1f / tests.size();
+                    addSample(totals, test, minutes.get(i) * share);
+                }
+            }
+            averageSamples(totals, durations);
+        }
+        return durations;
+    }
+
+    private static void addSample(Map<String, float[]> totals, String test, float minutes) {
+        float[] total = totals.get(test);
+        if (total == null) {
+            total = new float[2];
+            totals.put(test, total);
+        }
+        total[0] += minutes;
+        total[1]++;
+    }
+
+    private static void averageSamples(Map<String, float[]> totals, Map<String, Float> durations) {
+        for (Map.Entry<String, float[]> entry : totals.entrySet()) {
+            durations.put(entry.getKey(), entry.getValue()[0] / entry.getValue()[1]);
+        }
+    }
+
+    /**
+     * Split the given tests into (at most) the given number of shards with roughly equal total duration.
+     * Tests are assigned longest first to the shard with the least total duration so far. Tests without
+     * a recorded duration are assumed to take the average duration of all known tests.
+     * @param tests tests to split
+     * @param durations estimated duration of each test
+     * @param shards number of shards to create
+     * @return non-empty shards of tests
+     */
+    public static List<List<String>> shardTests(List<String> tests, final Map<String, Float> durations, int shards) {
+        float known = 0;
+        for (Float duration : durations.values()) {
+            known += duration;
+        }
+        final float fallback = durations.isEmpty() ? 1 : known / durations.size();
+
+        List<String> sorted = new ArrayList<String>(tests);
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return Float.compare(getDuration(b), getDuration(a));
+            }
+            private float getDuration(String test) {
+                Float duration = durations.get(test);
+                return (duration != null) ? duration : fallback;
+            }
+        });
+
+        int n = Math.max(1, Math.min(shards, tests.size()));
+        List<List<String>> result = new ArrayList<List<String>>();
+        float[] totals = new float[n];
+        for (int i = 0; i < n; i++) {
+            result.add(new ArrayList<String>());
+        }
+        for (String test : sorted) {
+            int lightest = 0;
+            for (int i = 1; i < n; i++) {
+                if (totals[i] < totals[lightest]) {
+                    lightest = i;
+                }
+            }
+            Float duration = durations.get(test);
+            totals[lightest] += (duration != null) ? duration : fallback;
+            result.get(lightest).add(test);
+        }
+        return result;
+    }
+
+    /**
+     * Split a comma separated JUnit/UI Automator test filter into its TestCase/TestSuite entries.
+     * @param filter
+     * @return
+     */
+    public static List<String> splitTestFilter(String filter) {
+        List<String> tests = new ArrayList<String>();
+        if (filter == null) {
+            return tests;
+        }
+        for (String test : filter.split(",")) {
+            test = test.trim();
+            if (!test.isEmpty()) {
+                tests.add(test);
+            }
+        }
+        return tests;
+    }
+
+    /**
+     * Write the given JSON object as the response body.
+     * @param response
+     * @param json
+     * @throws IOException
+     */
+    public static void writeJSON(StaplerResponse response, JSONObject json) throws IOException {
+        response.setContentType("application/json;charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.write(json.toString());
+        writer.close();
+    }
+
+    /**
+     * Answer "304 Not Modified" if the client already has the response with the given ETag, otherwise set the ETag.
+     * @param request
+     * @param response
+     * @param etag quoted entity tag of the response
+     * @return true if the response is complete
+     */
+    public static boolean checkETag(StaplerRequest request, StaplerResponse response, String etag) {
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        response.setHeader("ETag", etag);
+        return false;
+    }
 }
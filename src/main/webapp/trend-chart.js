@@ -0,0 +1,120 @@
+/*
+ * Renders AppThwack trend graphs in the browser from the JSON trend data endpoints.
+ *
+ * Usage: <div class="appthwack-trend" data-src="trend" data-series="cpu"
+ *             data-colors="#0c9b49" data-label="CPU Average (%)" data-stacked="false"></div>
+ *
+ * Charts with the same data-src share a single request, so a page of charts over the combined
+ * trend data (all metrics) costs one request.
+ */
+(function () {
+    var SVG = "http://www.w3.org/2000/svg";
+    var WIDTH = 500, HEIGHT = 200;
+    var LEFT = 45, RIGHT = 10, TOP = 10, BOTTOM = 30;
+
+    function element(name, attrs, parent) {
+        var e = document.createElementNS(SVG, name);
+        for (var key in attrs) {
+            e.setAttribute(key, attrs[key]);
+        }
+        if (parent) {
+            parent.appendChild(e);
+        }
+        return e;
+    }
+
+    function text(value, attrs, parent) {
+        var e = element("text", attrs, parent);
+        e.appendChild(document.createTextNode(value));
+        return e;
+    }
+
+    function render(container, data) {
+        var keys = container.getAttribute("data-series").split(",");
+        var colors = (container.getAttribute("data-colors") || "#083250").split(",");
+        var stacked = container.getAttribute("data-stacked") === "true";
+        var builds = data.builds;
+        var n = builds.length;
+
+        // Running totals of the series if stacked, the series themselves otherwise.
+        var lines = [], max = 0;
+        for (var s = 0; s < keys.length; s++) {
+            var values = data[keys[s]] || [];
+            var line = [];
+            for (var i = 0; i < n; i++) {
+                line.push((values[i] || 0) + (stacked && s > 0 ? lines[s - 1][i] : 0));
+                max = Math.max(max, line[i]);
+            }
+            lines.push(line);
+        }
+        max = max > 0 ? max : 1;
+
+        var svg = element("svg", { width: WIDTH, height: HEIGHT, "class": "appthwack-trend-chart" });
+        var w = WIDTH - LEFT - RIGHT, h = HEIGHT - TOP - BOTTOM;
+        function x(i) { return LEFT + (n > 1 ? i * w / (n - 1) : w / 2); }
+        function y(v) { return TOP + h - v / max * h; }
+
+        // Axes, range labels and build numbers.
+        element("line", { x1: LEFT, y1: TOP, x2: LEFT, y2: TOP + h, stroke: "#333" }, svg);
+        element("line", { x1: LEFT, y1: TOP + h, x2: LEFT + w, y2: TOP + h, stroke: "#333" }, svg);
+        text(String(Math.round(max * 100) / 100), { x: LEFT - 4, y: TOP + 8, "text-anchor": "end", "font-size": 10 }, svg);
+        text("0", { x: LEFT - 4, y: TOP + h, "text-anchor": "end", "font-size": 10 }, svg);
+        var step = Math.max(1, Math.ceil(n / 10));
+        for (var b = 0; b < n; b += step) {
+            text("#" + builds[b], { x: x(b), y: TOP + h + 14, "text-anchor": "middle", "font-size": 10 }, svg);
+        }
+        text(container.getAttribute("data-label") || "", { x: LEFT, y: HEIGHT - 2, "font-size": 10 }, svg);
+
+        // Series, topmost first so lower stacked areas are drawn above them.
+        for (var t = lines.length - 1; t >= 0; t--) {
+            var points = [];
+            for (var p = 0; p < n; p++) {
+                points.push(x(p) + "," + y(lines[t][p]));
+            }
+            var color = colors[t % colors.length];
+            if (stacked && n > 0) {
+                points.push(x(n - 1) + "," + y(0), x(0) + "," + y(0));
+                element("polygon", { points: points.join(" "), fill: color, "fill-opacity": 0.7 }, svg);
+            }
+            else {
+                element("polyline", { points: points.join(" "), fill: "none", stroke: color, "stroke-width": 2 }, svg);
+            }
+        }
+        container.innerHTML = "";
+        container.appendChild(svg);
+    }
+
+    // Charts sharing a data source (the combined trend data of all metrics) are served by a single request.
+    function load(src, containers) {
+        var request = new XMLHttpRequest();
+        request.open("GET", src, true);
+        request.onreadystatechange = function () {
+            if (request.readyState === 4 && request.status === 200) {
+                var data = JSON.parse(request.responseText);
+                for (var i = 0; i < containers.length; i++) {
+                    render(containers[i], data);
+                }
+            }
+        };
+        request.send(null);
+    }
+
+    function init() {
+        var containers = document.querySelectorAll(".appthwack-trend");
+        var sources = {};
+        for (var i = 0; i < containers.length; i++) {
+            var src = containers[i].getAttribute("data-src");
+            (sources[src] = sources[src] || []).push(containers[i]);
+        }
+        for (var src in sources) {
+            load(src, sources[src]);
+        }
+    }
+
+    if (document.readyState === "loading") {
+        document.addEventListener("DOMContentLoaded", init);
+    }
+    else {
+        init();
+    }
+})();
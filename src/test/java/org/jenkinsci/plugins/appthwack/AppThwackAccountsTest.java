@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.appthwack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AppThwackAccountsTest {
+
+    @Test
+    public void buildsArePlacedByUtilization() {
+        AppThwackAccounts accounts = new AppThwackAccounts("primary", "small 2\nlarge 8");
+        List<AppThwackAccounts.Account> all = accounts.getAccounts();
+        Map<AppThwackAccounts.Account, Integer> candidates = candidates(all, 1);
+
+        // The unlimited primary account counts as large as the largest account, so it fills up alongside it.
+        int[] placed = new int[all.size()];
+        for (int i = 0; i < 18; i++) {
+            placed[all.indexOf(accounts.reserve(candidates))]++;
+        }
+        assertEquals(8, placed[0]);
+        assertEquals(2, placed[1]);
+        assertEquals(8, placed[2]);
+    }
+
+    @Test
+    public void reservedRunsCountUntilReleased() {
+        AppThwackAccounts accounts = new AppThwackAccounts("primary", "secondary 4");
+        List<AppThwackAccounts.Account> all = accounts.getAccounts();
+        Map<AppThwackAccounts.Account, Integer> candidates = candidates(all, 2);
+
+        AppThwackAccounts.Account first = accounts.reserve(candidates);
+        assertSame(all.get(0), first);
+        assertEquals(2, first.getActiveRuns());
+        assertSame(all.get(1), accounts.reserve(candidates));
+        first.release(2);
+        assertSame(first, accounts.reserve(candidates));
+    }
+
+    @Test
+    public void reconfiguredAccountsKeepTheirRunsAndSlots() {
+        AppThwackAccounts accounts = new AppThwackAccounts("primary", "secondary 4");
+        AppThwackAccounts.Account secondary = accounts.getAccounts().get(1);
+        AppThwackRunSlots slots = secondary.getRunSlots();
+        accounts.reserve(candidates(accounts.getAccounts().subList(1, 2), 3));
+
+        AppThwackAccounts reconfigured = new AppThwackAccounts("primary", "secondary 2\nthird", accounts);
+        assertEquals(3, reconfigured.getAccounts().size());
+        assertSame(secondary, reconfigured.getAccounts().get(1));
+        assertSame(slots, secondary.getRunSlots());
+        assertEquals(2, slots.getCapacity());
+        assertEquals(3, secondary.getActiveRuns());
+    }
+
+    private static Map<AppThwackAccounts.Account, Integer> candidates(List<AppThwackAccounts.Account> accounts, int runs) {
+        Map<AppThwackAccounts.Account, Integer> candidates = new LinkedHashMap<AppThwackAccounts.Account, Integer>();
+        for (AppThwackAccounts.Account account : accounts) {
+            candidates.put(account, runs);
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.appthwack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class AppThwackCacheTest {
+
+    private static final long Ttl = 60 * 1000;
+
+    @Test
+    public void concurrentCallersShareASingleLoad() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AppThwackCache<String, String> cache = newCache(new AppThwackCache.Loader<String, String>() {
+            public String load(String key, PrintStream log) throws InterruptedException {
+                loads.incrementAndGet();
+                release.await();
+                return key.toUpperCase();
+            }
+        }, Ttl);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> values = new ArrayList<Future<String>>();
+        for (int i = 0; i < 8; i++) {
+            values.add(executor.submit(new Callable<String>() {
+                public String call() throws InterruptedException {
+                    return cache.get("project", null);
+                }
+            }));
+        }
+        // Give every caller time to find the load in progress.
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<String> value : values) {
+            assertEquals("PROJECT", value.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void missingValuesAreRememberedForTheNegativeTtl() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        AppThwackCache<String, String> cache = newCache(new AppThwackCache.Loader<String, String>() {
+            public String load(String key, PrintStream log) {
+                loads.incrementAndGet();
+                return null;
+            }
+        }, Ttl);
+
+        assertNull(cache.get("missing", null));
+        assertNull(cache.get("missing", null));
+        assertNull(cache.refresh("missing", null));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void refreshLoadsAgainOnceTheNegativeTtlPassed() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        AppThwackCache<String, Integer> cache = newCache(new AppThwackCache.Loader<String, Integer>() {
+            public Integer load(String key, PrintStream log) {
+                return loads.incrementAndGet();
+            }
+        }, 0);
+
+        assertEquals(Integer.valueOf(1), cache.get("projects", null));
+        assertEquals(Integer.valueOf(1), cache.get("projects", null));
+        assertEquals(Integer.valueOf(2), cache.refresh("projects", null));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void failedLoadsAreRetried() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        AppThwackCache<String, String> cache = newCache(new AppThwackCache.Loader<String, String>() {
+            public String load(String key, PrintStream log) {
+                if (loads.incrementAndGet() == 1) {
+                    throw new IllegalStateException("AppThwack is down");
+                }
+                return key;
+            }
+        }, Ttl);
+
+        try {
+            cache.get("project", null);
+        }
+        catch (IllegalStateException e) {
+            // Expected, the next caller loads the value again.
+        }
+        assertEquals("project", cache.get("project", null));
+        assertEquals(2, loads.get());
+    }
+
+    private static <K, V> AppThwackCache<K, V> newCache(AppThwackCache.Loader<K, V> loader, long negativeTtl) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        return new AppThwackCache<K, V>(loader, executor, Ttl, Ttl, negativeTtl);
+    }
+}
@@ -0,0 +1,191 @@
+package org.jenkinsci.plugins.appthwack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.jenkinsci.plugins.appthwack.AppThwackMetricsStore.Column;
+import org.jenkinsci.plugins.appthwack.AppThwackMetricsStore.Series;
+
+public class AppThwackMetricsStoreTest {
+
+    private File root;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("appthwack", "");
+        root.delete();
+        root.mkdirs();
+        dir = new File(root, "appthwack-metrics");
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    @Test
+    public void rowsSurviveReopening() throws IOException {
+        AppThwackMetricsStore store = AppThwackMetricsStore.create(dir);
+        append(store, 1, 10);
+        append(store, 2, 20);
+
+        Series series = AppThwackMetricsStore.open(dir).query(Integer.MAX_VALUE, 10);
+        assertEquals(2, series.size());
+        assertEquals(1, series.getNumber(0));
+        assertEquals(20f, series.get(Column.PASS, 1), 0);
+    }
+
+    @Test
+    public void versionNeverRepeatsAcrossReopening() throws IOException {
+        AppThwackMetricsStore store = AppThwackMetricsStore.create(dir);
+        append(store, 1, 10);
+        long version = store.getVersion();
+        assertEquals(version, AppThwackMetricsStore.open(dir).getVersion());
+
+        // Compaction leaves fewer rows, the version still goes up.
+        for (int i = 0; i < 4; i++) {
+            append(store, 1, i);
+        }
+        AppThwackMetricsStore compacted = AppThwackMetricsStore.open(dir);
+        assertTrue(compacted.getVersion() > store.getVersion());
+        append(compacted, 2, 20);
+        assertTrue(AppThwackMetricsStore.open(dir).getVersion() > version + 5);
+    }
+
+    @Test
+    public void latestRowOfABuildWins() throws IOException {
+        AppThwackMetricsStore store = AppThwackMetricsStore.create(dir);
+        append(store, 1, 10);
+        append(store, 1, 11);
+        store.remove(2);
+
+        Series series = store.query(Integer.MAX_VALUE, 10);
+        assertEquals(1, series.size());
+        assertEquals(11f, series.get(Column.PASS, 0), 0);
+    }
+
+    @Test
+    public void supersededRowsAreCompactedIntoANewDirectory() throws IOException {
+        AppThwackMetricsStore store = AppThwackMetricsStore.create(dir);
+        for (int i = 0; i < 10; i++) {
+            append(store, 1, i);
+        }
+        append(store, 2, 100);
+        long version = store.getVersion();
+
+        AppThwackMetricsStore compacted = AppThwackMetricsStore.open(dir);
+        assertTrue(compacted.getVersion() > version);
+        assertEquals(2 * 4, new File(dir, "number.bin").length());
+        assertFalse(new File(root, "appthwack-metrics.new").exists());
+        assertFalse(new File(root, "appthwack-metrics.old").exists());
+
+        Series series = compacted.query(Integer.MAX_VALUE, 10);
+        assertEquals(9f, series.get(Column.PASS, 0), 0);
+        assertEquals(100f, series.get(Column.PASS, 1), 0);
+    }
+
+    @Test
+    public void partialRowIsDropped() throws IOException {
+        AppThwackMetricsStore store = AppThwackMetricsStore.create(dir);
+        append(store, 1, 10);
+        append(store, 2, 20);
+        // Interrupted while appending the second row: only some of its columns were written.
+        RandomAccessFile fps = new RandomAccessFile(new File(dir, "fps.bin"), "rw");
+        fps.setLength(4);
+        fps.close();
+
+        assertEquals(1, AppThwackMetricsStore.open(dir).query(Integer.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    public void interruptedSeedIsDiscarded() throws IOException {
+        AppThwackMetricsStore seed = AppThwackMetricsStore.create(new File(root, "appthwack-metrics.new"));
+        append(seed, 1, 10);
+
+        AppThwackMetricsStore.recover(dir);
+        assertFalse(dir.exists());
+        assertFalse(new File(root, "appthwack-metrics.new").exists());
+    }
+
+    @Test
+    public void interruptedSwapRestoresPreviousStore() throws IOException {
+        AppThwackMetricsStore store = AppThwackMetricsStore.create(dir);
+        append(store, 1, 10);
+        // Interrupted after moving the store aside, before the compacted store replaced it.
+        assertTrue(dir.renameTo(new File(root, "appthwack-metrics.old")));
+        AppThwackMetricsStore.create(new File(root, "appthwack-metrics.new"));
+
+        AppThwackMetricsStore.recover(dir);
+        assertEquals(1, AppThwackMetricsStore.open(dir).query(Integer.MAX_VALUE, 10).size());
+        assertFalse(new File(root, "appthwack-metrics.old").exists());
+    }
+
+    @Test
+    public void downsamplingKeepsSpikesOfEveryColumn() {
+        int n = 1000;
+        int[] numbers = new int[n];
+        float[][] values = new float[Column.values().length][n];
+        for (int i = 0; i < n; i++) {
+            numbers[i] = i + 1;
+            values[Column.PASS.ordinal()][i] = 100 - (i % 7 == 0 ? 1 : 0);
+            values[Column.FAIL.ordinal()][i] = (i % 7 == 0) ? 1 : 0;
+            values[Column.MEMORY.ordinal()][i] = 250000 + (i % 13) * 1000;
+        }
+        // A single build with many failures, buried in noisy memory values.
+        values[Column.FAIL.ordinal()][517] = 40;
+        values[Column.PASS.ordinal()][517] = 60;
+        Series series = new Series(numbers, values);
+
+        Series sampled = series.downsample(100, Column.values());
+        assertTrue(sampled.size() <= 100);
+        assertEquals(1, sampled.getNumber(0));
+        assertEquals(n, sampled.getNumber(sampled.size() - 1));
+        boolean spike = false;
+        for (int i = 0; i < sampled.size(); i++) {
+            spike |= sampled.get(Column.FAIL, i) == 40;
+        }
+        assertTrue("failure spike dropped", spike);
+
+        Series fails = series.downsample(100, Column.FAIL);
+        assertTrue(fails.size() <= 100);
+        float max = 0;
+        for (int i = 0; i < fails.size(); i++) {
+            max = Math.max(max, fails.get(Column.FAIL, i));
+        }
+        assertEquals(40f, max, 0);
+    }
+
+    @Test
+    public void smallSeriesAreNotDownsampled() {
+        Series series = new Series(new int[] { 1, 2, 3 }, new float[Column.values().length][3]);
+        assertSame(series, series.downsample(100, Column.PASS));
+    }
+
+    private static void append(AppThwackMetricsStore store, int number, float pass) throws IOException {
+        float[] values = new float[Column.values().length - 2];
+        // PASS is the first metric column, 1 the status of a completed build.
+        values[0] = pass;
+        store.appendRow(number, 1, values);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.appthwack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AppThwackRateLimiterTest {
+
+    /**
+     * One token every 100 ms, with a burst of 100 tokens.
+     */
+    private static final int RequestsPerMinute = 600;
+
+    private AppThwackRateLimiter limiter;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        limiter = new AppThwackRateLimiter(RequestsPerMinute);
+        // Use up the burst so every further request has to queue.
+        for (int i = 0; i < RequestsPerMinute / 6; i++) {
+            limiter.acquire("burst");
+        }
+    }
+
+    @Test
+    public void jobsTakeTurns() throws InterruptedException {
+        List<AppThwackRateLimiter.Ticket> tickets = new ArrayList<AppThwackRateLimiter.Ticket>();
+        List<String> jobs = Arrays.asList("shards", "shards", "shards", "other", "poller");
+        for (String job : jobs) {
+            tickets.add(limiter.reserve(job));
+        }
+        List<String> granted = new ArrayList<String>();
+        while (granted.size() < tickets.size()) {
+            for (int i = 0; i < tickets.size(); i++) {
+                if (tickets.get(i) != null && limiter.tryAcquire(tickets.get(i)) == 0) {
+                    granted.add(jobs.get(i));
+                    tickets.set(i, null);
+                }
+            }
+            Thread.sleep(5);
+        }
+        assertEquals(Arrays.asList("shards", "other", "poller", "shards", "shards"), granted);
+    }
+
+    @Test
+    public void reservedTicketIsServedBeforeLaterRequests() throws InterruptedException {
+        AppThwackRateLimiter.Ticket ticket = limiter.reserve("poller");
+        assertTrue(limiter.tryAcquire(ticket) > 0);
+        // A request of another job arriving later only gets a token after the ticket.
+        limiter.acquire("build");
+        assertEquals(0, limiter.tryAcquire(ticket));
+    }
+
+    @Test
+    public void cancelledTicketHandsBackItsToken() throws InterruptedException {
+        AppThwackRateLimiter.Ticket ticket = limiter.reserve("poller");
+        while (limiter.tryAcquire(ticket) > 0) {
+            Thread.sleep(5);
+        }
+        limiter.cancel(ticket);
+        long start = System.currentTimeMillis();
+        limiter.acquire("build");
+        assertTrue(System.currentTimeMillis() - start < 50);
+    }
+}
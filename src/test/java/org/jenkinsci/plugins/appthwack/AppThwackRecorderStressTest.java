@@ -0,0 +1,289 @@
+package org.jenkinsci.plugins.appthwack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import com.appthwack.appthwack.AppThwackApi;
+import com.appthwack.appthwack.AppThwackDevicePool;
+import com.appthwack.appthwack.AppThwackFile;
+import com.appthwack.appthwack.AppThwackProject;
+import com.appthwack.appthwack.AppThwackResult;
+import com.appthwack.appthwack.AppThwackRun;
+
+/**
+ * Many concurrent builds of a single job against a stand-in for the AppThwack API, checking the state
+ * all builds share (upload cache, metrics store and build index, run slots, accounts) stays consistent.
+ */
+public class AppThwackRecorderStressTest {
+
+    private static final int Builds = 24;
+    private static final int MaxConcurrentRuns = 12;
+    private static final int SecondaryMaxConcurrentRuns = 4;
+    private static final String PrimaryKey = "primary-api-key";
+    private static final String SecondaryKey = "secondary-api-key";
+    private static final String ProjectName = "Stress";
+    private static final List<String> DevicePoolNames = Arrays.asList("Top 10", "Tablets");
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final AtomicInteger uploads = new AtomicInteger();
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final ConcurrentMap<String, StandInApi> apis = new ConcurrentHashMap<String, StandInApi>();
+
+    @Before
+    public void setUp() {
+        AppThwackClients.setFactory(new AppThwackClients.Factory() {
+            public AppThwackApi create(String apiKey) {
+                StandInApi api = new StandInApi(apiKey);
+                StandInApi existing = apis.putIfAbsent(apiKey, api);
+                return (existing != null) ? existing : api;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        AppThwackClients.setFactory(null);
+    }
+
+    @Test
+    public void concurrentBuildsShareStateSafely() throws Exception {
+        AppThwackRecorder.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(AppThwackRecorder.DescriptorImpl.class);
+        descriptor.apiKey = PrimaryKey;
+        descriptor.additionalApiKeys = String.format("%s %d", SecondaryKey, SecondaryMaxConcurrentRuns);
+        descriptor.maxConcurrentRuns = MaxConcurrentRuns;
+        descriptor.apiRequestsPerMinute = 60000;
+
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setConcurrentBuild(true);
+        project.getBuildersList().add(new TestBuilder() {
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                build.getWorkspace().child("app.apk").write(getApp(build.getNumber()), "UTF-8");
+                return true;
+            }
+        });
+        project.getPublishersList().add(new AppThwackRecorder(ProjectName, DevicePoolNames.get(0), DevicePoolNames.get(1),
+                "app.apk", "builtinAndroid", null, null, null, null, null, null, null, null, null, null, null,
+                null, null, null, null, null, false, false, false, false));
+        j.jenkins.setNumExecutors(Builds);
+
+        List<Future<FreeStyleBuild>> builds = new ArrayList<Future<FreeStyleBuild>>();
+        for (int i = 0; i < Builds; i++) {
+            // Distinct parameters keep the queue from folding the builds into one.
+            builds.add(project.scheduleBuild2(0, new Cause.UserIdCause(),
+                    new ParametersAction(new StringParameterValue("STRESS", Integer.toString(i)))));
+        }
+        for (Future<FreeStyleBuild> build : builds) {
+            j.assertBuildStatusSuccess(build);
+        }
+
+        // Runs: One per device pool of every build, never more in flight than allowed.
+        int runs = Builds * DevicePoolNames.size();
+        assertEquals(runs, scheduled.get());
+        assertTrue(String.format("%d runs in flight", maxActive.get()), maxActive.get() <= MaxConcurrentRuns);
+        // Builds overlap while their runs are polled, so some of them are placed on the secondary account.
+        StandInApi secondary = apis.get(SecondaryKey);
+        assertNotNull("secondary account never looked up", secondary);
+        assertTrue("no runs placed on the secondary account", secondary.maxActive.get() > 0);
+        assertTrue(String.format("%d runs in flight on the secondary account", secondary.maxActive.get()),
+                secondary.maxActive.get() <= SecondaryMaxConcurrentRuns);
+        assertEquals(0, active.get());
+
+        // Slots and accounts: Everything taken has been handed back.
+        assertEquals(0, descriptor.getRunSlots().getUsed());
+        for (AppThwackAccounts.Account account : descriptor.getAccounts().getAccounts()) {
+            assertEquals(0, account.getActiveRuns());
+            if (account.getRunSlots() != null) {
+                assertEquals(0, account.getRunSlots().getUsed());
+            }
+        }
+
+        // Uploads: Every build uploaded its app at most once, and every app is cached for the account which uploaded it.
+        assertTrue(String.format("%d uploads by %d builds", uploads.get(), Builds), uploads.get() <= Builds);
+        for (FreeStyleBuild build : project.getBuilds()) {
+            String digest = AppThwackUploadCache.digest(getApp(build.getNumber()));
+            assertTrue(descriptor.getUploadCache().get(PrimaryKey, digest) != null
+                    || descriptor.getUploadCache().get(SecondaryKey, digest) != null);
+        }
+
+        // Index and metrics: Exactly one entry per build, with the runs of that build.
+        AppThwackBuildIndex index = AppThwackBuildIndex.get(project);
+        assertEquals(Builds, index.getEntries().size());
+        Set<Integer> runIds = new HashSet<Integer>();
+        for (FreeStyleBuild build : project.getBuilds()) {
+            AppThwackTestResultAction action = build.getAction(AppThwackTestResultAction.class);
+            assertEquals(DevicePoolNames.size(), action.getRunResults().size());
+            for (AppThwackTestResult result : action.getRunResults()) {
+                assertTrue(runIds.add(result.getRunId()));
+            }
+        }
+        assertEquals(runs, runIds.size());
+        AppThwackMetricsStore.Series series = AppThwackMetricsStore.get(project).query(Integer.MAX_VALUE, Builds * 2);
+        assertEquals(Builds, series.size());
+    }
+
+    /**
+     * Account which has the stress project on both device pools and completes runs right away.
+     */
+    private class StandInApi extends AppThwackApi {
+
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxActive = new AtomicInteger();
+        private final StandInProject project = new StandInProject(this);
+
+        StandInApi(String apiKey) {
+            super(apiKey);
+        }
+
+        @Override
+        public List<AppThwackProject> getProjects() {
+            return Arrays.<AppThwackProject>asList(project);
+        }
+
+        @Override
+        public AppThwackProject getProject(String name) {
+            return ProjectName.equals(name) ? project : null;
+        }
+
+        @Override
+        public AppThwackFile uploadFile(File file) {
+            uploads.incrementAndGet();
+            AppThwackFile upload = new AppThwackFile();
+            upload.file_id = nextId.getAndIncrement();
+            upload.name = file.getName();
+            return upload;
+        }
+    }
+
+    private class StandInProject extends AppThwackProject {
+
+        private final StandInApi api;
+
+        StandInProject(StandInApi api) {
+            this.api = api;
+            this.name = ProjectName;
+        }
+
+        @Override
+        public List<AppThwackDevicePool> getDevicePools() {
+            List<AppThwackDevicePool> pools = new ArrayList<AppThwackDevicePool>();
+            for (String name : DevicePoolNames) {
+                AppThwackDevicePool pool = new AppThwackDevicePool();
+                pool.name = name;
+                pools.add(pool);
+            }
+            return pools;
+        }
+
+        @Override
+        public AppThwackRun scheduleAppExplorerRun(AppThwackFile app, String name, AppThwackDevicePool pool,
+                HashMap<String, String> options) {
+            scheduled.incrementAndGet();
+            raise(active, maxActive);
+            raise(api.active, api.maxActive);
+            return new StandInRun(api, nextId.getAndIncrement());
+        }
+    }
+
+    private class StandInRun extends AppThwackRun {
+
+        private final StandInApi api;
+        private final AtomicInteger downloads = new AtomicInteger();
+
+        StandInRun(StandInApi api, int id) {
+            this.api = api;
+            this.id = id;
+        }
+
+        @Override
+        public AppThwackResult getResults() {
+            AppThwackResult result = new AppThwackResult();
+            result.summary = new AppThwackResult.Summary();
+            result.summary.id = id;
+            result.summary.status = "completed";
+            result.summary.result = "pass";
+            result.summary.passes = 1;
+            result.summary.count = 1;
+            result.summary.reportFile = "report.zip";
+            return result;
+        }
+
+        @Override
+        public String getWebUrl() {
+            return String.format("https://appthwack.com/project/stress/run/%d", id);
+        }
+
+        /**
+         * The results archive is downloaded once the run completed, so the run no longer occupies a device.
+         */
+        @Override
+        public File downloadResults() {
+            if (downloads.getAndIncrement() == 0) {
+                active.decrementAndGet();
+                api.active.decrementAndGet();
+            }
+            try {
+                File archive = File.createTempFile("appthwack-stress", ".zip");
+                FileOutputStream out = new FileOutputStream(archive);
+                out.write(new byte[] { 'P', 'K' });
+                out.close();
+                return archive;
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Return the app content built by the given build. Every other build builds the same app, so their uploads
+     * race on the same upload cache entry.
+     */
+    private static String getApp(int number) {
+        return String.format("app %d", (number % 2 == 0) ? 0 : number);
+    }
+
+    private static void raise(AtomicInteger active, AtomicInteger maxActive) {
+        int current = active.incrementAndGet();
+        int max;
+        while ((max = maxActive.get()) < current && !maxActive.compareAndSet(max, current)) {
+            // Another run raised the maximum in between, compare again.
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.jenkinsci.plugins.appthwack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class AppThwackRunSlotsTest {
+
+    @Test
+    public void shrinkingCapacityHoldsBackNewRunsUntilInFlightRunsFit() {
+        AppThwackRunSlots slots = new AppThwackRunSlots(4);
+        assertTrue(slots.tryAcquire(4));
+        slots.setCapacity(2);
+        slots.release(2);
+        assertFalse(slots.tryAcquire(1));
+        slots.release(2);
+        assertTrue(slots.tryAcquire(2));
+        assertEquals(2, slots.getUsed());
+    }
+
+    @Test
+    public void growingCapacityAdmitsWaitingBuilds() throws Exception {
+        final AppThwackRunSlots slots = new AppThwackRunSlots(2);
+        assertTrue(slots.tryAcquire(2));
+        Future<Boolean> waiting = acquireInBackground(slots, 2);
+        slots.setCapacity(4);
+        assertTrue(waiting.get());
+        assertEquals(4, slots.getUsed());
+    }
+
+    @Test
+    public void buildsNeedingMoreSlotsThanThereAreAreTurnedAway() throws Exception {
+        AppThwackRunSlots slots = new AppThwackRunSlots(4);
+        assertFalse(slots.acquire(5));
+        assertEquals(0, slots.getUsed());
+
+        // Also once the capacity drops below what a waiting build needs.
+        assertTrue(slots.tryAcquire(2));
+        Future<Boolean> waiting = acquireInBackground(slots, 3);
+        slots.setCapacity(2);
+        assertFalse(waiting.get());
+        assertEquals(2, slots.getUsed());
+    }
+
+    private static Future<Boolean> acquireInBackground(final AppThwackRunSlots slots, final int permits) throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> future = executor.submit(new Callable<Boolean>() {
+            public Boolean call() throws InterruptedException {
+                return slots.acquire(permits);
+            }
+        });
+        executor.shutdown();
+        // Give the build time to start waiting.
+        Thread.sleep(100);
+        return future;
+    }
+}
@@ -0,0 +1,231 @@
+package org.jenkinsci.plugins.appthwack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.FilePath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.appthwack.appthwack.AppThwackApi;
+import com.appthwack.appthwack.AppThwackException;
+import com.appthwack.appthwack.AppThwackFile;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Uploads against a local stand-in for the AppThwack API which fails requests on demand.
+ */
+public class AppThwackUploadTest {
+
+    /**
+     * Status of the next responses, 0 drops the connection without a response. Succeeds once empty.
+     */
+    private final Queue<Integer> faults = new LinkedList<Integer>();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private HttpServer server;
+    private File app;
+    private PrintStream log;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/file/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                drain(exchange.getRequestBody());
+                Integer status;
+                synchronized (faults) {
+                    status = faults.poll();
+                }
+                if (status != null && status == 0) {
+                    exchange.close();
+                    return;
+                }
+                byte[] body = (status == null) ? "{\"file_id\": 42}".getBytes("UTF-8") : "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders((status == null) ? 200 : status, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        final String url = String.format("http://127.0.0.1:%d/api/file/", server.getAddress().getPort());
+        AppThwackClients.setFactory(new AppThwackClients.Factory() {
+            public AppThwackApi create(String apiKey) {
+                return new StandInApi(apiKey, url);
+            }
+        });
+
+        app = File.createTempFile("app", ".apk");
+        OutputStream out = new FileOutputStream(app);
+        out.write(new byte[4096]);
+        out.close();
+        log = new PrintStream(new ByteArrayOutputStream(), true);
+    }
+
+    @After
+    public void tearDown() {
+        AppThwackClients.setFactory(null);
+        server.stop(0);
+        app.delete();
+    }
+
+    @Test
+    public void uploadSucceedsRightAway() throws Exception {
+        AppThwackFile upload = upload(app);
+        assertNotNull(upload);
+        assertEquals(Integer.valueOf(42), upload.file_id);
+        assertEquals(app.getName(), upload.name);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void serverErrorsAreRetried() throws Exception {
+        fail(503, 500);
+        assertNotNull(upload(app));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void rateLimitedUploadsAreRetried() throws Exception {
+        fail(429);
+        assertNotNull(upload(app));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void droppedConnectionsAreRetried() throws Exception {
+        fail(0, 0);
+        assertNotNull(upload(app));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void retriesAreBounded() throws Exception {
+        fail(502, 502, 502, 502, 502, 502);
+        assertNull(upload(app));
+        assertEquals(4, requests.get());
+    }
+
+    @Test
+    public void badApiKeyIsNotRetried() throws Exception {
+        fail(401);
+        assertNull(upload(app));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void rejectedFileIsNotRetried() throws Exception {
+        fail(400);
+        assertNull(upload(app));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void missingFileIsNotUploaded() throws Exception {
+        assertNull(upload(new File(app.getParentFile(), "missing.apk")));
+        assertEquals(0, requests.get());
+    }
+
+    @Test
+    public void onlyNamedStatusesDecideRetries() {
+        assertTrue(AppThwackUploadCallable.isTransient(new AppThwackException("HTTP/1.1 503 Service Unavailable")));
+        assertTrue(AppThwackUploadCallable.isTransient(new AppThwackException("Request failed, status code: 429")));
+        assertFalse(AppThwackUploadCallable.isTransient(new AppThwackException("Upload failed with status 404")));
+        // Numbers which aren't a status don't make a failure transient, or permanent.
+        assertFalse(AppThwackUploadCallable.isTransient(new AppThwackException("File of 500 bytes rejected")));
+        assertFalse(AppThwackUploadCallable.isTransient(new AppThwackException("Invalid API key for port 502")));
+    }
+
+    private void fail(Integer... statuses) {
+        synchronized (faults) {
+            for (Integer status : statuses) {
+                faults.add(status);
+            }
+        }
+    }
+
+    private AppThwackFile upload(File file) throws InterruptedException {
+        return AppThwackRecorder.uploadFile(new FilePath(file), "key", new AppThwackRateLimiter(6000), "job", 1, log);
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // Discard the upload.
+        }
+        in.close();
+    }
+
+    /**
+     * Client which uploads to the stand-in and fails the way the AppThwack client does: with the
+     * status of a rejected request or the I/O error which interrupted it.
+     */
+    private static class StandInApi extends AppThwackApi {
+        private final String url;
+
+        StandInApi(String apiKey, String url) {
+            super(apiKey);
+            this.url = url;
+        }
+
+        @Override
+        public AppThwackFile uploadFile(File file) throws AppThwackException {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                OutputStream out = connection.getOutputStream();
+                InputStream in = new FileInputStream(file);
+                try {
+                    byte[] buffer = new byte[8192];
+                    for (int read; (read = in.read(buffer)) != -1; ) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                finally {
+                    in.close();
+                    out.close();
+                }
+                int status = connection.getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new AppThwackException(String.format("Upload failed with status %d", status));
+                }
+                drain(connection.getInputStream());
+                AppThwackFile upload = new AppThwackFile();
+                upload.file_id = 42;
+                upload.name = file.getName();
+                return upload;
+            }
+            catch (IOException e) {
+                AppThwackException failure = new AppThwackException(e.getMessage());
+                failure.initCause(e);
+                throw failure;
+            }
+        }
+    }
+}
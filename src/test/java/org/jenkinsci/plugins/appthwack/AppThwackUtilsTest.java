@@ -0,0 +1,80 @@
+package org.jenkinsci.plugins.appthwack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AppThwackUtilsTest {
+
+    @Test
+    public void singleBuildSpreadsShardsEvenly() {
+        List<List<String>> shards = new ArrayList<List<String>>();
+        List<Float> minutes = new ArrayList<Float>();
+        shards.add(Arrays.asList("a", "b"));
+        minutes.add(10f);
+        shards.add(Arrays.asList("c", "d"));
+        minutes.add(2f);
+
+        Map<String, Float> durations = AppThwackUtils.fitTestDurations(shards, minutes);
+        assertEquals(5f, durations.get("a"), 0.01);
+        assertEquals(5f, durations.get("b"), 0.01);
+        assertEquals(1f, durations.get("c"), 0.01);
+        assertEquals(1f, durations.get("d"), 0.01);
+    }
+
+    @Test
+    public void slowTestIsSeparatedAcrossBuilds() {
+        // Test "slow" takes 9 minutes, all others 1 minute. Shards are composed differently in every build.
+        String[][][] builds = {
+            { { "slow", "a" }, { "b", "c" } },
+            { { "slow", "b" }, { "a", "c" } },
+            { { "slow", "c" }, { "a", "b" } },
+        };
+        Map<String, Float> actual = new HashMap<String, Float>();
+        actual.put("slow", 9f);
+        actual.put("a", 1f);
+        actual.put("b", 1f);
+        actual.put("c", 1f);
+
+        List<List<String>> shards = new ArrayList<List<String>>();
+        List<Float> minutes = new ArrayList<Float>();
+        for (String[][] build : builds) {
+            for (String[] shard : build) {
+                float total = 0;
+                for (String test : shard) {
+                    total += actual.get(test);
+                }
+                shards.add(Arrays.asList(shard));
+                minutes.add(total);
+            }
+        }
+
+        Map<String, Float> durations = AppThwackUtils.fitTestDurations(shards, minutes);
+        // Spreading each shard evenly would give the slow test 5 minutes and its shard mates 3.
+        assertTrue(durations.get("slow") > 8f);
+        for (String test : new String[] { "a", "b", "c" }) {
+            assertTrue(durations.get(test) < 1.5f);
+        }
+    }
+
+    @Test
+    public void shardsAreBalancedByDuration() {
+        Map<String, Float> durations = new HashMap<String, Float>();
+        durations.put("slow", 9f);
+        durations.put("a", 3f);
+        durations.put("b", 3f);
+        durations.put("c", 3f);
+
+        List<List<String>> shards = AppThwackUtils.shardTests(Arrays.asList("a", "b", "c", "slow"), durations, 2);
+        assertEquals(2, shards.size());
+        assertEquals(Arrays.asList("slow"), shards.get(0));
+        assertEquals(3, shards.get(1).size());
+    }
+}